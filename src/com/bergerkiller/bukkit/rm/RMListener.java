@@ -50,39 +50,32 @@ public class RMListener implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onChunkLoad(ChunkLoadEvent event) {
-        for (PhysicalPort p : PhysicalPort.getAll()) {
-            if (p.position.isIn(event.getChunk())) {
-                p.setLoaded(true);
-            }
+        CircuitProvider.loadInstances(event.getChunk());
+        for (PhysicalPort p : PhysicalPort.getAll(event.getChunk())) {
+            p.setLoaded(true);
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onChunkUnload(ChunkUnloadEvent event) {
 //        if (event.isCancelled()) return;
-        for (PhysicalPort p : PhysicalPort.getAll()) {
-            if (p.position.isIn(event.getChunk())) {
-                p.setLoaded(false);
-            }
+        for (PhysicalPort p : PhysicalPort.getAll(event.getChunk())) {
+            p.setLoaded(false);
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onWorldLoad(WorldLoadEvent event) {
-        for (PhysicalPort p : PhysicalPort.getAll()) {
-            if (p.position.world.equals(event.getWorld().getName())) {
-                p.updateLoaded();
-            }
+        for (PhysicalPort p : PhysicalPort.getAll(event.getWorld())) {
+            p.updateLoaded();
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onWorldUnload(WorldUnloadEvent event) {
         if (event.isCancelled()) return;
-        for (PhysicalPort p : PhysicalPort.getAll()) {
-            if (p.position.world.equals(event.getWorld().getName())) {
-                p.setLoaded(false);
-            }
+        for (PhysicalPort p : PhysicalPort.getAll(event.getWorld())) {
+            p.setLoaded(false);
         }
     }
 
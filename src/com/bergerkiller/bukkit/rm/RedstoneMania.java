@@ -1,6 +1,7 @@
 package com.bergerkiller.bukkit.rm;
 
 import java.io.File;
+import java.util.Collections;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
@@ -12,6 +13,7 @@ import com.bergerkiller.bukkit.common.Common;
 import com.bergerkiller.bukkit.common.MessageBuilder;
 import com.bergerkiller.bukkit.common.PluginBase;
 import com.bergerkiller.bukkit.common.Task;
+import com.bergerkiller.bukkit.common.config.FileConfiguration;
 import com.bergerkiller.bukkit.common.permissions.NoPermissionException;
 import com.bergerkiller.bukkit.common.utils.ParseUtil;
 import com.bergerkiller.bukkit.common.utils.StringUtil;
@@ -19,11 +21,24 @@ import com.bergerkiller.bukkit.rm.circuit.Circuit;
 import com.bergerkiller.bukkit.rm.circuit.CircuitCreator;
 import com.bergerkiller.bukkit.rm.circuit.CircuitInstance;
 import com.bergerkiller.bukkit.rm.circuit.CircuitProvider;
+import com.bergerkiller.bukkit.rm.circuit.CircuitWatcher;
+import com.bergerkiller.bukkit.rm.circuit.InstanceJournal;
+import com.bergerkiller.bukkit.rm.circuit.InstanceSaver;
+import com.bergerkiller.bukkit.rm.circuit.NetlistEvaluator;
+import com.bergerkiller.bukkit.rm.circuit.TimingWheel;
 import com.bergerkiller.bukkit.rm.element.Port;
 
 public class RedstoneMania extends PluginBase {
     public static RedstoneMania plugin;
     private Task updatetask;
+    private Task autosavetask;
+    private Task idletask;
+    private Task watchtask;
+    private int autosaveInterval;
+    private int instanceIdleTime;
+    private int maxLoadedInstances;
+    private long maxInstanceMemory;
+    private boolean watchCircuits;
 
     @Override
     public void enable() {
@@ -33,20 +48,70 @@ public class RedstoneMania extends PluginBase {
         this.register(RMListener.class);
         this.register("circuit");
 
+        // Configuration
+        FileConfiguration config = new FileConfiguration(this);
+        config.load();
+        config.setHeader("stepBudget", "\nThe maximum amount of element updates a single circuit instance performs every tick\nUpdates beyond this budget continue in the next tick");
+        NetlistEvaluator.setStepBudget(config.get("stepBudget", NetlistEvaluator.getStepBudget()));
+        config.setHeader("autosaveInterval", "\nThe interval in seconds at which changed circuit instances are saved, 0 to only save on shutdown");
+        this.autosaveInterval = config.get("autosaveInterval", 300);
+        config.setHeader("instanceIdleTime", "\nThe time in seconds after which a circuit instance without physical ports in loaded chunks is saved and unloaded\nIt is loaded again when one of these chunks loads, 0 to keep all instances loaded");
+        this.instanceIdleTime = config.get("instanceIdleTime", 600);
+        config.setHeader("maxLoadedInstances", "\nThe maximum amount of circuit instances kept in memory, 0 for no limit\nThe least recently used instances without physical ports in loaded chunks are saved and unloaded beyond it");
+        this.maxLoadedInstances = config.get("maxLoadedInstances", 0);
+        config.setHeader("maxInstanceMemory", "\nThe maximum estimated memory in kilobytes used by the circuit instances kept in memory, 0 for no limit");
+        this.maxInstanceMemory = config.get("maxInstanceMemory", 0) * 1024L;
+        config.setHeader("watchCircuits", "\nWhether changed circuit files are loaded again right away, along with the circuits that use them\nThe instances of these circuits keep their state, all other circuits keep running");
+        this.watchCircuits = config.get("watchCircuits", false);
+        config.save();
+
         // Load
         CircuitProvider.loadAll();
 
         // Start scheduler
+        this.startTasks();
+    }
+
+    /**
+     * Starts the scheduled tasks and the circuit watcher, which are stopped by {@link #disable()}
+     */
+    private void startTasks() {
         this.updatetask = new Task(this) {
             @Override
             public void run() {
-                for (Circuit c : CircuitProvider.all()) {
-                    for (CircuitInstance ci : c.getInstances()) {
-                        ci.onTick();
-                    }
-                }
+                TimingWheel.nextTick();
+                NetlistEvaluator.tickActive();
+                InstanceJournal.commit();
             }
         }.start(1, 1);
+        if (this.watchCircuits) {
+            CircuitWatcher.start();
+            this.watchtask = new Task(this) {
+                @Override
+                public void run() {
+                    CircuitWatcher.poll();
+                }
+            }.start(20, 20);
+        }
+        if (this.autosaveInterval > 0) {
+            this.autosavetask = new Task(this) {
+                @Override
+                public void run() {
+                    CircuitProvider.autosave();
+                }
+            }.start(this.autosaveInterval * 20, this.autosaveInterval * 20);
+        }
+        if (this.instanceIdleTime > 0 || this.maxLoadedInstances > 0 || this.maxInstanceMemory > 0) {
+            this.idletask = new Task(this) {
+                @Override
+                public void run() {
+                    if (instanceIdleTime > 0) {
+                        CircuitProvider.unloadIdle(instanceIdleTime * 20);
+                    }
+                    CircuitProvider.evict(maxLoadedInstances, maxInstanceMemory);
+                }
+            }.start(20, 20);
+        }
     }
 
     @Override
@@ -57,11 +122,21 @@ public class RedstoneMania extends PluginBase {
     @Override
     public void disable() {
         Task.stop(this.updatetask);
+        Task.stop(this.autosavetask);
+        Task.stop(this.idletask);
+        Task.stop(this.watchtask);
+        this.autosavetask = null;
+        this.idletask = null;
+        this.watchtask = null;
+        CircuitWatcher.stop();
         for (Circuit c : CircuitProvider.all()) {
-            for (CircuitInstance ci : c.getInstances()) {
-                ci.save();
-            }
+            c.saveInstances();
+            c.closeInstances();
         }
+        InstanceJournal.checkpoint();
+        InstanceJournal.disable();
+        // Wait for the instances to be written, a reload reads them right after
+        InstanceSaver.shutdown();
         CircuitProvider.clearAll();
     }
 
@@ -189,10 +264,26 @@ public class RedstoneMania extends PluginBase {
                 }
             }
             builder.send(sender);
+        } else if (cmdLabel.equals("stats")) {
+            MessageBuilder builder = new MessageBuilder();
+            builder.yellow("Loaded circuit instances: ").white(CircuitProvider.getLoadedCount()).newLine();
+            builder.yellow("Instance lookups: ").white(CircuitProvider.getHits()).yellow(" loaded, ");
+            builder.white(CircuitProvider.getMisses()).yellow(" loaded from disk").newLine();
+            builder.yellow("Instances evicted from memory: ").white(CircuitProvider.getEvictions());
+            builder.send(sender);
         } else if (cmdLabel.equals("reload")) {
-            this.disable();
-            CircuitProvider.loadAll();
-            sender.sendMessage(ChatColor.YELLOW + "All circuits have been reloaded!");
+            if (args.length > 0) {
+                if (CircuitProvider.reload(Collections.singletonList(Util.fixName(StringUtil.join(" ", args)))) > 0) {
+                    sender.sendMessage(ChatColor.YELLOW + "The circuit and the circuits using it have been reloaded!");
+                } else {
+                    sender.sendMessage(ChatColor.RED + "The circuit is not loaded and could not be reloaded!");
+                }
+            } else {
+                this.disable();
+                CircuitProvider.loadAll();
+                this.startTasks();
+                sender.sendMessage(ChatColor.YELLOW + "All circuits have been reloaded!");
+            }
         } else if (cmdLabel.equals("save")) {
             if (args.length > 0) {
                 if (!sel.getPorts().isEmpty()) {
@@ -211,6 +302,27 @@ public class RedstoneMania extends PluginBase {
             } else {
                 sender.sendMessage(ChatColor.RED + "Please enter a circuit name too!");
             }
+        } else if (cmdLabel.equals("resave")) {
+            if (args.length > 0) {
+                if (!sel.getPorts().isEmpty()) {
+                    String name = Util.fixName(StringUtil.join(" ", args));
+                    File path = new File(this.getDataFolder() + File.separator + "circuits" + File.separator + name + ".circuit");
+                    if (path.exists()) {
+                        Circuit circuit = new CircuitCreator(player, sel).create();
+                        if (circuit != null && CircuitProvider.redefine(circuit, name)) {
+                            sender.sendMessage(ChatColor.GREEN + "You redefined circuit '" + name + "', its instances keep running!");
+                        } else {
+                            sender.sendMessage(ChatColor.RED + "The new circuit could not be put in place, circuit '" + name + "' was left unchanged!");
+                        }
+                    } else {
+                        sender.sendMessage(ChatColor.RED + "A circuit with this name does not exist yet!");
+                    }
+                } else {
+                    sender.sendMessage(ChatColor.RED + "Please define the ports!");
+                }
+            } else {
+                sender.sendMessage(ChatColor.RED + "Please enter a circuit name too!");
+            }
         } else {
             sender.sendMessage(ChatColor.RED + "Unknown sub command '" + cmdLabel + "'!");
         }
@@ -1,13 +1,25 @@
 package com.bergerkiller.bukkit.rm.circuit;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
+import com.bergerkiller.bukkit.common.BlockLocation;
 import com.bergerkiller.bukkit.rm.RedstoneMania;
 import com.bergerkiller.bukkit.rm.element.Component;
 import com.bergerkiller.bukkit.rm.element.PhysicalPort;
@@ -21,6 +33,36 @@ import com.bergerkiller.bukkit.rm.element.Port;
  */
 public class Circuit extends CircuitBase {
     private HashMap<String, CircuitInstance> instances = new HashMap<>();
+    /**
+     * The names of the stored instances that are not loaded
+     */
+    private final Set<String> dormant = new HashSet<>();
+    /**
+     * The snapshots of unloaded instances that are still being written, by instance name
+     */
+    private final Map<String, InstanceSnapshot> unloading = new ConcurrentHashMap<>();
+    /**
+     * The snapshots of instances of which the last write failed, by instance name, they are written again by the next
+     * save
+     */
+    private final Map<String, InstanceSnapshot> failed = new ConcurrentHashMap<>();
+    /**
+     * All elements of the fully linked instance the netlist is compiled from, in the order of their IDs, they hold the
+     * initial state of new instances
+     */
+    private Component[] prototypeElements = null;
+    /**
+     * The amount of elements of the circuit itself, which are the first elements of the prototype
+     */
+    private int mainElementCount = 0;
+    /**
+     * The compiled netlist shared by the instances of this circuit
+     */
+    private CircuitNetlist netlist = null;
+    /**
+     * The store that holds the state of the instances of this circuit
+     */
+    private InstanceStore store = null;
 
     @Override
     public File getFile() {
@@ -33,21 +75,95 @@ public class Circuit extends CircuitBase {
         return file;
     }
 
+    /**
+     * Gets an instance of this circuit, loading it if it is stored but not loaded
+     * 
+     * @param name of the instance
+     * @return the instance, or null if it does not exist
+     */
     public CircuitInstance getInstance(String name) {
-        return this.instances.get(name);
+        CircuitInstance ci = this.instances.get(name);
+        if (ci != null) {
+            CircuitProvider.hits++;
+        } else if (this.dormant.contains(name)) {
+            CircuitProvider.misses++;
+            ci = this.loadInstance(name);
+        }
+        if (ci != null) {
+            ci.touch();
+        }
+        return ci;
+    }
+
+    /**
+     * Gets whether an instance is the loaded instance of this circuit by its name
+     * 
+     * @param ci the instance
+     * @return if the instance is loaded
+     */
+    boolean isLoaded(CircuitInstance ci) {
+        return this.instances.get(ci.name) == ci;
+    }
+
+    /**
+     * Gets whether an instance exists, without loading it
+     * 
+     * @param name of the instance
+     * @return if the instance exists, loaded or not
+     */
+    public boolean hasInstance(String name) {
+        return this.instances.containsKey(name) || this.dormant.contains(name);
+    }
+
+    /**
+     * Gets whether an instance is stored but not loaded
+     * 
+     * @param name of the instance
+     * @return if the instance is dormant
+     */
+    public boolean isDormant(String name) {
+        return this.dormant.contains(name);
     }
 
+    /**
+     * Gets the loaded instances of this circuit
+     * 
+     * @return the loaded instances
+     */
     public Collection<CircuitInstance> getInstances() {
         return this.instances.values();
     }
 
+    @Override
+    public Port getPort(String name) {
+        this.loadElements();
+        return super.getPort(name);
+    }
+
+    @Override
+    public Collection<Port> getPorts() {
+        this.loadElements();
+        return super.getPorts();
+    }
+
+    /**
+     * Loads the elements of this circuit, if only its compiled netlist was loaded from the {@link NetlistCache}
+     * 
+     * @return if the elements are loaded
+     */
+    private synchronized boolean loadElements() {
+        return this.elements != null || this.load();
+    }
+
     /**
-     * Creates an instance of this circuit
+     * Creates an instance of this circuit, cloning and linking all elements including those of the sub-circuits
      * 
-     * @param main whether this is the main (first) instance created
      * @return an instance of this circuit
      */
-    private CircuitInstance createInstance(boolean main) {
+    public CircuitInstance createInstance() {
+        if (!this.loadElements()) {
+            return null;
+        }
         CircuitInstance c = new CircuitInstance(this, "");
         // Set dependencies
         c.subcircuits = new CircuitInstance[this.subcircuits.length];
@@ -112,6 +228,468 @@ public class Circuit extends CircuitBase {
         return c;
     }
 
+    /**
+     * Creates a main (placed) instance of this circuit
+     * <p>
+     * The topology of the circuit is compiled only once, from a prototype instance, and shared by all main instances.
+     * A main instance only holds the state of its evaluator and its own ports, which are needed to bind the physical
+     * port locations. It has no sub-circuit instances of its own.
+     * 
+     * @return an instance of this circuit
+     */
+    private CircuitInstance createMainInstance() {
+        if (!this.compile()) {
+            return null;
+        }
+        CircuitInstance c = new CircuitInstance(this, "");
+        c.subcircuits = new CircuitInstance[0];
+        c.elements = new Component[this.mainElementCount];
+        int portCount = 0;
+        for (int i = 0; i < this.mainElementCount; i++) {
+            if (this.prototypeElements[i] instanceof Port) {
+                // the clone keeps the ID of the element
+                c.elements[portCount++] = this.prototypeElements[i].clone();
+            }
+        }
+        c.elements = Arrays.copyOf(c.elements, portCount);
+        c.initialize(false);
+        c.bind(new NetlistEvaluator(this.netlist, this.prototypeElements));
+        return c;
+    }
+
+    /**
+     * Compiles the netlist shared by the main instances, if not already compiled
+     * 
+     * @return if the netlist is compiled
+     */
+    boolean compile() {
+        if (this.netlist == null) {
+            CircuitInstance prototype = this.createInstance();
+            if (prototype == null) {
+                return false;
+            }
+            this.prototypeElements = prototype.getAllElements();
+            this.mainElementCount = prototype.elements.length;
+            this.netlist = CircuitNetlist.compile(prototype);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the compiled netlist shared by the main instances
+     * 
+     * @return the netlist, or null if it is not compiled
+     */
+    CircuitNetlist getNetlist() {
+        return this.netlist;
+    }
+
+    /**
+     * Gets the elements the netlist is compiled from, which hold the initial state of new instances
+     * 
+     * @return the elements, in the order of their IDs
+     */
+    Component[] getPrototypeElements() {
+        return this.prototypeElements;
+    }
+
+    /**
+     * Gets the amount of elements of the circuit itself, which are the first of the prototype elements
+     * 
+     * @return the amount of main elements
+     */
+    int getMainElementCount() {
+        return this.mainElementCount;
+    }
+
+    /**
+     * Sets the compiled netlist, as loaded from the {@link NetlistCache}
+     * <p>
+     * The elements of the circuit itself are not loaded until they are needed.
+     * 
+     * @param netlist           the compiled netlist
+     * @param prototypeElements the elements the netlist was compiled from, which need no connections
+     * @param mainElementCount  the amount of elements of the circuit itself
+     */
+    void setCompiled(CircuitNetlist netlist, Component[] prototypeElements, int mainElementCount) {
+        this.netlist = netlist;
+        this.prototypeElements = prototypeElements;
+        this.mainElementCount = mainElementCount;
+    }
+
+    /**
+     * Gets the store that holds the state of the instances of this circuit
+     * 
+     * @return the instance store, or null if the circuit could not be compiled
+     */
+    public InstanceStore getInstanceStore() {
+        if (this.store == null && this.compile()) {
+            this.store = new InstanceStore(this.netlist, this.getInstanceFolder());
+        }
+        return this.store;
+    }
+
+    /**
+     * Loads the saved instances of this circuit
+     * <p>
+     * Only instances with a physical port in a loaded chunk are loaded, the others stay stored until one of their
+     * chunks loads or they are requested by name. Instances saved to their own file, before the instance store
+     * existed, are all loaded.
+     * 
+     * @throws IOException if the instance store could not be opened
+     */
+    public void loadInstances() throws IOException {
+        InstanceStore store = this.getInstanceStore();
+        if (store == null) {
+            return;
+        }
+        for (String instanceName : store.open()) {
+            List<BlockLocation> locations = store.getLocations(instanceName);
+            boolean loaded = locations.isEmpty();
+            for (BlockLocation location : locations) {
+                if (location.isLoaded()) {
+                    loaded = true;
+                    break;
+                }
+            }
+            this.dormant.add(instanceName);
+            if (loaded) {
+                this.loadInstance(instanceName);
+            } else {
+                CircuitProvider.addDormant(this, instanceName, locations);
+            }
+        }
+        File instanceFolder = this.getInstanceFolder();
+        for (String fileName : instanceFolder.list()) {
+            if (fileName.toLowerCase().endsWith(".instance")) {
+                String instanceName = fileName.substring(0, fileName.length() - 9);
+                if (this.hasInstance(instanceName)) {
+                    continue;
+                }
+                CircuitInstance ci = this.createInstance(instanceName);
+                if (ci == null || !ci.load()) {
+                    // Delete this instance
+                    this.removeLoaded(instanceName);
+                    new File(instanceFolder, fileName).delete();
+                } else {
+                    ci.update();
+                }
+            }
+        }
+        for (CircuitInstance ci : new ArrayList<>(this.instances.values())) {
+            ci.updateAlive();
+        }
+    }
+
+    /**
+     * Loads a stored instance that is not loaded
+     * <p>
+     * An instance that could not be loaded stays stored, and is tried again once one of its chunks loads or it is
+     * requested by name.
+     * 
+     * @param name of the instance
+     * @return the instance, or null if it could not be loaded
+     */
+    private CircuitInstance loadInstance(String name) {
+        InstanceSnapshot unsaved = this.failed.get(name);
+        if (unsaved != null) {
+            // The last write of the instance failed, try again so the latest state is loaded
+            this.submitSave(this.store, Collections.singletonList(unsaved), Collections.<File>emptyList());
+            InstanceSaver.flush();
+        } else if (this.unloading.containsKey(name)) {
+            // The instance is still being written
+            InstanceSaver.flush();
+        }
+        CircuitInstance ci = this.createMainInstance();
+        if (ci == null) {
+            this.keepDormant(name);
+            return null;
+        }
+        ci.name = name;
+        try {
+            this.store.open();
+            boolean loaded = this.store.load(ci);
+            this.putLoaded(ci);
+            this.dormant.remove(name);
+            if (loaded) {
+                ci.setClean();
+            }
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to load instance '" + name + "' of circuit '" + this.name + "': " + ex.getMessage());
+            for (Port p : ci.getPorts()) {
+                for (PhysicalPort pp : p.locations) {
+                    PhysicalPort.unload(pp);
+                }
+            }
+            this.keepDormant(name);
+            return null;
+        }
+        ci.update();
+        return ci;
+    }
+
+    /**
+     * Adds an instance to the loaded instances, counting it in the loaded instance totals
+     * 
+     * @param ci the instance
+     */
+    private void putLoaded(CircuitInstance ci) {
+        CircuitInstance replaced = this.instances.put(ci.name, ci);
+        if (replaced != null) {
+            CircuitProvider.onUnloaded(replaced);
+        }
+        CircuitProvider.onLoaded(ci);
+    }
+
+    /**
+     * Removes an instance from the loaded instances, no longer counting it in the loaded instance totals
+     * 
+     * @param name of the instance
+     * @return the removed instance, or null if it was not loaded
+     */
+    private CircuitInstance removeLoaded(String name) {
+        CircuitInstance ci = this.instances.remove(name);
+        if (ci != null) {
+            CircuitProvider.onUnloaded(ci);
+        }
+        return ci;
+    }
+
+    /**
+     * Registers the chunks of a stored instance that could not be loaded again, so it is tried again once one of them
+     * loads
+     * 
+     * @param name of the instance
+     */
+    private void keepDormant(String name) {
+        try {
+            CircuitProvider.addDormant(this, name, this.store.getLocations(name));
+        } catch (IOException ex) {
+            // the instance can still be requested by name
+        }
+    }
+
+    /**
+     * Saves the instances of which no physical port has been in a loaded chunk for a certain time, and unloads them
+     * 
+     * @param idleTicks the amount of ticks
+     * @return the amount of instances unloaded
+     */
+    public int unloadIdleInstances(int idleTicks) {
+        List<CircuitInstance> idle = new ArrayList<>();
+        for (CircuitInstance ci : this.instances.values()) {
+            if (ci.isIdle(idleTicks)) {
+                idle.add(ci);
+            }
+        }
+        this.unloadInstances(idle);
+        return idle.size();
+    }
+
+    /**
+     * Saves instances to the instance store and unloads them
+     * <p>
+     * They are loaded again once one of the chunks of their physical ports loads, or when they are requested by name.
+     * 
+     * @param unload the instances to unload
+     */
+    void unloadInstances(Collection<CircuitInstance> unload) {
+        final InstanceStore store = this.getInstanceStore();
+        if (store == null || unload.isEmpty()) {
+            return;
+        }
+        final List<InstanceSnapshot> snapshots = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        for (CircuitInstance ci : unload) {
+            InstanceSnapshot snapshot = new InstanceSnapshot(ci);
+            snapshots.add(snapshot);
+            store.reserve(ci.name);
+            files.add(ci.getFile());
+            this.unloading.put(ci.name, snapshot);
+            List<BlockLocation> locations = new ArrayList<>();
+            for (Port p : ci.getPorts()) {
+                for (PhysicalPort pp : p.locations) {
+                    locations.add(pp.position);
+                    PhysicalPort.unload(pp);
+                }
+            }
+            ci.getEvaluator().sleep();
+            this.removeLoaded(ci.name);
+            this.dormant.add(ci.name);
+            CircuitProvider.addDormant(this, ci.name, locations);
+        }
+        this.submitSave(store, snapshots, files);
+    }
+
+    /**
+     * Saves all instances of this circuit to the instance store
+     * <p>
+     * A snapshot of every instance is taken right away, they are written on a background thread. Use
+     * {@link InstanceSaver#flush()} to wait for the writes to complete.
+     * 
+     * @return if the save was started
+     */
+    public boolean saveInstances() {
+        return this.saveInstances(false) >= 0;
+    }
+
+    /**
+     * Saves the instances of this circuit that changed since they were last saved to the instance store
+     * 
+     * @return the amount of instances saved, or -1 if the save could not be started
+     * @see #saveInstances()
+     */
+    public int saveDirtyInstances() {
+        return this.saveInstances(true);
+    }
+
+    private int saveInstances(boolean dirtyOnly) {
+        final InstanceStore store = this.getInstanceStore();
+        if (store == null) {
+            return -1;
+        }
+        final List<InstanceSnapshot> snapshots = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        for (CircuitInstance ci : this.instances.values()) {
+            if (ci.getEvaluator() != null && (!dirtyOnly || ci.isDirty() || this.failed.containsKey(ci.name))) {
+                snapshots.add(new InstanceSnapshot(ci));
+                store.reserve(ci.name);
+                files.add(ci.getFile());
+                ci.setClean();
+            }
+        }
+        // Unloaded instances of which the last write failed
+        for (InstanceSnapshot snapshot : this.failed.values()) {
+            if (this.dormant.contains(snapshot.name)) {
+                snapshots.add(snapshot);
+            }
+        }
+        if (snapshots.isEmpty() && !store.hasRemoved()) {
+            return 0;
+        }
+        this.submitSave(store, snapshots, files);
+        return snapshots.size();
+    }
+
+    /**
+     * Writes snapshots to the instance store on the background thread
+     * 
+     * @param store     the instance store
+     * @param snapshots the snapshots to write
+     * @param files     the files of single instances that the store replaces, deleted once written
+     */
+    private void submitSave(final InstanceStore store, final List<InstanceSnapshot> snapshots, final List<File> files) {
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (store.save(snapshots)) {
+                    // The store replaces the files of single instances
+                    for (File file : files) {
+                        if (file.exists()) {
+                            file.delete();
+                        }
+                    }
+                    // Saves are written in order, so these snapshots are newer than any that failed before
+                    for (InstanceSnapshot snapshot : snapshots) {
+                        Circuit.this.failed.remove(snapshot.name);
+                    }
+                    if (Circuit.this.failed.isEmpty()) {
+                        InstanceJournal.onSaved(Circuit.this);
+                    }
+                } else {
+                    InstanceJournal.onSaveFailed(Circuit.this);
+                    for (InstanceSnapshot snapshot : snapshots) {
+                        Circuit.this.failed.put(snapshot.name, snapshot);
+                    }
+                }
+                for (InstanceSnapshot snapshot : snapshots) {
+                    Circuit.this.unloading.remove(snapshot.name, snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the instance store of this circuit, once the pending saves are written
+     */
+    public void closeInstances() {
+        final InstanceStore store = this.store;
+        if (store != null) {
+            InstanceSaver.submit(new Runnable() {
+                @Override
+                public void run() {
+                    store.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves the instances of the previous definition of this circuit onto this one, which replaced it
+     * <p>
+     * The stored instances that are not loaded are loaded to be moved, and unloaded again afterwards. All moved
+     * instances are saved to the instance store, which is then bound to the new netlist. If a stored instance can not
+     * be loaded, nothing is moved and the instances stay with the previous definition, as binding the store would
+     * clear the record of that instance.
+     * 
+     * @param previous the previous definition of this circuit
+     * @return the amount of instances moved, or -1 if this circuit could not be compiled or not all instances could be
+     *         loaded
+     */
+    int migrateInstances(Circuit previous) {
+        if (!this.compile() || !previous.compile()) {
+            return -1;
+        }
+        List<String> dormant = new ArrayList<>(previous.dormant);
+        List<CircuitInstance> loaded = new ArrayList<>();
+        for (String name : dormant) {
+            CircuitInstance ci = previous.loadInstance(name);
+            if (ci == null) {
+                RedstoneMania.plugin.log(Level.SEVERE, "Instance '" + name + "' of circuit '" + this.name + "' could not be loaded to be moved");
+                List<CircuitInstance> unload = new ArrayList<>();
+                for (CircuitInstance other : loaded) {
+                    if (!other.hasLoadedPorts()) {
+                        unload.add(other);
+                    }
+                }
+                previous.unloadInstances(unload);
+                return -1;
+            }
+            loaded.add(ci);
+        }
+        // The store files are bound to the new netlist once the previous writes are done
+        previous.closeInstances();
+        InstanceSaver.flush();
+        InstanceMigration migration = new InstanceMigration(previous, this);
+        int dropped = 0;
+        List<CircuitInstance> unload = new ArrayList<>();
+        for (CircuitInstance ci : previous.instances.values()) {
+            CircuitInstance migrated = this.createMainInstance();
+            migrated.name = ci.name;
+            dropped += migration.migrate(ci, migrated);
+            this.putLoaded(migrated);
+            migrated.update();
+            if (dormant.contains(migrated.name) && !migrated.hasLoadedPorts()) {
+                unload.add(migrated);
+            }
+        }
+        int count = previous.instances.size();
+        for (String name : new ArrayList<>(previous.instances.keySet())) {
+            previous.removeLoaded(name);
+        }
+        if (dropped > 0) {
+            RedstoneMania.plugin.log(Level.WARNING, dropped + " physical ports of circuit '" + this.name + "' were removed, because their port no longer exists");
+        }
+        this.saveInstances();
+        for (CircuitInstance ci : new ArrayList<>(this.instances.values())) {
+            if (ci.updateAlive()) {
+                unload.remove(ci);
+            }
+        }
+        this.unloadInstances(unload);
+        return count;
+    }
+
     public String findNewInstanceName() {
         StringBuilder nameBuilder = new StringBuilder(2);
         String newName = "";
@@ -119,48 +697,76 @@ public class Circuit extends CircuitBase {
             nameBuilder.setLength(0);
             nameBuilder.append(i);
             newName = nameBuilder.toString();
-            if (!this.instances.containsKey(newName)) {
+            if (!this.hasInstance(newName)) {
                 break;
             }
         }
         return newName;
     }
 
-    public CircuitInstance createInstance() {
-        return this.createInstance(false);
-    }
-
     public CircuitInstance createInstance(String name) {
         CircuitInstance c = this.getInstance(name);
         if (c == null) {
-            c = this.createInstance(true);
+            c = this.createMainInstance();
             c.name = name;
-            this.instances.put(name, c);
+            this.putLoaded(c);
+            InstanceJournal.logInstance(this, name, true);
         }
         return c;
     }
 
     public CircuitInstance removeInstance(String name) {
-        CircuitInstance ci = this.instances.remove(name);
+        CircuitInstance ci = this.removeLoaded(name);
         if (ci != null) {
+            InstanceJournal.logInstance(this, name, false);
             for (Port p : ci.getPorts()) {
                 for (PhysicalPort pp : p.locations) {
                     PhysicalPort.remove(pp);
                 }
             }
+            if (ci.getEvaluator() != null) {
+                ci.getEvaluator().sleep();
+            }
+            if (this.store != null) {
+                this.store.remove(name);
+            }
+            File sourcefile = ci.getFile();
+            if (sourcefile.exists()) sourcefile.delete();
+        } else if (this.dormant.remove(name)) {
+            // Not loaded, so it only has to be removed from the store
+            InstanceJournal.logInstance(this, name, false);
+            this.store.remove(name);
+        }
+        if (this.failed.remove(name) != null && this.failed.isEmpty()) {
+            InstanceJournal.onSaved(this);
         }
-        File sourcefile = ci.getFile();
-        if (sourcefile.exists()) sourcefile.delete();
         return ci;
     }
 
     @Override
     public void load(DataInputStream dis) throws IOException {
+        int magic = dis.readInt();
+        if (magic == CircuitFormat.MAGIC) {
+            CircuitFormat.load(this, dis);
+        } else {
+            // Files written before the format was versioned start with the dependency count right away
+            byte[] header = ByteBuffer.allocate(4).putInt(magic).array();
+            this.loadLegacy(new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(header), dis)));
+        }
+    }
+
+    /**
+     * Loads this circuit from the unversioned format, which has no side connections
+     * 
+     * @param dis the data stream to read from
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    private void loadLegacy(DataInputStream dis) throws IOException {
         // Read the sub-circuit dependencies
         this.subcircuits = new CircuitInstance[dis.readShort()];
         for (int i = 0; i < this.subcircuits.length; i++) {
             String cname = dis.readUTF();
-            Circuit c = CircuitProvider.get(cname);
+            Circuit c = CircuitProvider.getDependency(cname);
             if (c == null) {
                 throw new RuntimeException("Circuit dependency not found: " + cname);
             } else {
@@ -198,33 +804,13 @@ public class Circuit extends CircuitBase {
 
     @Override
     public void save(DataOutputStream dos) throws IOException {
-        // Write circuit dependencies
-        dos.writeShort(this.subcircuits.length);
-        for (CircuitInstance c : this.subcircuits) {
-            dos.writeUTF(c.source.name);
-        }
-        // Write the circuit data
-        dos.writeShort(this.elements.length);
-        for (Component r : this.elements) {
-            r.saveTo(dos);
-        }
-        // Write connections
-        for (Component r : this.elements) {
-            dos.writeShort(r.mainInputs.size());
-            for (Component input : r.mainInputs) {
-                dos.writeInt(input.getId());
-            }
-            dos.writeShort(r.mainOutputs.size());
-            for (Component output : r.mainOutputs) {
-                dos.writeInt(output.getId());
-            }
-        }
+        CircuitFormat.save(this, dos);
     }
 
     public String getNewInstanceName() {
         int index = this.instances.size();
         String name = String.valueOf(index);
-        while (this.getInstance(name) != null) {
+        while (this.hasInstance(name)) {
             index++;
             name = String.valueOf(index);
         }
@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -39,6 +40,10 @@ public abstract class CircuitBase {
      * The ports of the circuit
      */
     private HashMap<String, Port> ports = new HashMap<>();
+    /**
+     * All elements of this circuit and its sub-circuits, indexed by their ID
+     */
+    private Component[] elementsById = null;
 
     /**
      * Whether the circuit is initialized or not
@@ -53,18 +58,6 @@ public abstract class CircuitBase {
      */
     private boolean saved = false;
 
-    /**
-     * Ticks all the elements in this Circuit
-     */
-    public void onTick() {
-        for (Component r : this.elements) {
-            r.onTick();
-        }
-        for (CircuitInstance ci : this.subcircuits) {
-            ci.onTick();
-        }
-    }
-
     /**
      * Initializes the circuit
      */
@@ -77,7 +70,7 @@ public abstract class CircuitBase {
      * 
      * @param generateIds whether to generate IDs or not
      */
-    private void initialize(boolean generateIds) {
+    void initialize(boolean generateIds) {
         this.ports.clear();
         for (Component r : this.elements) {
             r.setCircuit(this);
@@ -89,7 +82,7 @@ public abstract class CircuitBase {
             c.initialize(false);
         }
         if (generateIds) {
-            this.generateIds(0);
+            this.generateIds();
         }
         this.initialized = true;
     }
@@ -123,58 +116,69 @@ public abstract class CircuitBase {
     }
 
     /**
-     * Fixes direct connections
+     * Fixes direct connections of the elements of this circuit and its sub-circuits
+     * <p>
+     * All elements are checked once, after which only the neighbours of the elements that changed are checked again.
      */
     public void fixDirectConnections() {
-        this.fixDirectConnections(true);
-    }
-
-    /**
-     * Fixes direct connections
-     * 
-     * @param checksub whether to check sub-circuits or not
-     * @return if the circuit has been altered due to the fixing or not
-     */
-    private boolean fixDirectConnections(boolean checksub) {
-        boolean changed = false;
-        boolean hasDirectConnections = true;
-        while (hasDirectConnections) {
-            hasDirectConnections = false;
-            for (Component r : this.elements) {
-                Component direct = r.findDirectConnection();
-                if (direct == null) continue;
-                hasDirectConnections = true;
-                changed = true;
-                // remove which: direct or r?
-                if (!(direct instanceof Port)) {
-                    direct.disable();
-                } else if (!(r instanceof Port)) {
-                    r.disable();
-                } else {
-                    // which port is better?
-                    if (direct.getCircuit() == this) {
-                        // direct is top-level, this one is most important
-                        if (r.getCircuit() == this) {
-                            // r is also top level?! Oh oh! Let's just de-link them for good grace!
-                            r.disconnect(direct);
-                        } else {
-                            r.disable();
-                        }
+        ArrayList<Component> elements = new ArrayList<>();
+        for (Component r : this.elements) {
+            elements.add(r);
+        }
+        for (CircuitBase c : this.subcircuits) {
+            for (Component r : c.elements) {
+                elements.add(r);
+            }
+        }
+        Set<Component> checked = new HashSet<>(elements);
+        Set<Component> queued = new HashSet<>(elements);
+        ArrayDeque<Component> pending = new ArrayDeque<>(elements);
+        while (!pending.isEmpty()) {
+            Component r = pending.poll();
+            queued.remove(r);
+            Component direct = r.findDirectConnection();
+            if (direct == null) continue;
+            // remove which: direct or r?
+            CircuitBase owner = r.getCircuit();
+            Component disabled;
+            if (!(direct instanceof Port)) {
+                disabled = direct;
+            } else if (!(r instanceof Port)) {
+                disabled = r;
+            } else {
+                // which port is better?
+                if (direct.getCircuit() == owner) {
+                    // direct is top-level, this one is most important
+                    if (r.getCircuit() == owner) {
+                        // r is also top level?! Oh oh! Let's just de-link them for good grace!
+                        r.disconnect(direct);
+                        requeue(direct, checked, queued, pending);
+                        requeue(r, checked, queued, pending);
+                        continue;
                     } else {
-                        direct.disable();
+                        disabled = r;
                     }
+                } else {
+                    disabled = direct;
                 }
             }
-        }
-        if (checksub) {
-            for (CircuitBase c : this.subcircuits) {
-                if (c.fixDirectConnections(false)) changed = true;
+            // the neighbours are connected to each other, which may create new direct connections
+            ArrayList<Component> neighbours = new ArrayList<>();
+            neighbours.addAll(disabled.mainInputs);
+            neighbours.addAll(disabled.sideInputs);
+            neighbours.addAll(disabled.mainOutputs);
+            neighbours.addAll(disabled.sideOutputs);
+            disabled.disable();
+            for (Component neighbour : neighbours) {
+                requeue(neighbour, checked, queued, pending);
             }
+            requeue(r, checked, queued, pending);
         }
-        if (changed) {
-            return this.fixDirectConnections(checksub);
-        } else {
-            return false;
+    }
+
+    private static void requeue(Component element, Set<Component> checked, Set<Component> queued, ArrayDeque<Component> pending) {
+        if (checked.contains(element) && queued.add(element)) {
+            pending.add(element);
         }
     }
 
@@ -185,7 +189,14 @@ public abstract class CircuitBase {
      * @return the element
      */
     public Component getElement(int id) {
-        if (id < this.elements.length) {
+        if (this.elementsById != null && id >= 0 && id < this.elementsById.length) {
+            Component r = this.elementsById[id];
+            if (r != null && r.getId() == id) {
+                return r;
+            }
+        }
+        // Not generated by this circuit, or changed since
+        if (id >= 0 && id < this.elements.length && this.elements[id].getId() == id) {
             return this.elements[id];
         } else {
             for (CircuitBase sub : this.subcircuits) {
@@ -227,6 +238,7 @@ public abstract class CircuitBase {
      * @param index the index to remove
      */
     private void removeElement(int index) {
+        this.elementsById = null;
         Component[] newElements = new Component[this.elements.length - 1];
         for (int i = 0; i < index; i++) {
             newElements[i] = this.elements[i];
@@ -266,6 +278,26 @@ public abstract class CircuitBase {
         return elements.toArray(new Component[0]);
     }
 
+    /**
+     * Gets all elements of this circuit and its sub-circuits, in the order their IDs are generated
+     * 
+     * @return the elements
+     */
+    public Component[] getAllElements() {
+        ArrayList<Component> elements = new ArrayList<>();
+        this.addAllElements(elements);
+        return elements.toArray(new Component[0]);
+    }
+
+    private void addAllElements(ArrayList<Component> elements) {
+        for (Component r : this.elements) {
+            elements.add(r);
+        }
+        for (CircuitBase cb : this.subcircuits) {
+            cb.addAllElements(elements);
+        }
+    }
+
     public Circuit getIndependentCircuit() {
         Circuit c = new Circuit();
         c.elements = this.getIndependentElements();
@@ -274,6 +306,14 @@ public abstract class CircuitBase {
         return c;
     }
 
+    /**
+     * Generates the IDs of all elements of this circuit and its sub-circuits, and indexes the elements by them
+     */
+    private void generateIds() {
+        this.elementsById = new Component[this.generateIds(0)];
+        this.indexIds(this.elementsById);
+    }
+
     private int generateIds(int startindex) {
         for (Component r : this.elements) {
             r.setId(startindex);
@@ -285,6 +325,15 @@ public abstract class CircuitBase {
         return startindex;
     }
 
+    private void indexIds(Component[] elementsById) {
+        for (Component r : this.elements) {
+            elementsById[r.getId()] = r;
+        }
+        for (CircuitBase cb : this.subcircuits) {
+            cb.indexIds(elementsById);
+        }
+    }
+
     public abstract File getFile();
 
     public String getFullName() {
@@ -84,6 +84,7 @@ public class CircuitCreator {
         c.elements = this.items.toArray(new Component[0]);
         c.subcircuits = this.subcircuits.values().toArray(new CircuitInstance[0]);
         c.initialize();
+        CircuitOptimizer.createDefault().optimize(c);
         return c;
     }
 
@@ -0,0 +1,242 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.bergerkiller.bukkit.rm.element.Component;
+
+/**
+ * The versioned binary format of circuit files
+ * <p>
+ * A file starts with a magic number and a format version, followed by the sub-circuit dependencies, the elements and
+ * their output connections, and ends with a CRC32 checksum of everything after the version. Counts, IDs and delays are
+ * stored as variable-length integers, and the output IDs of an element are stored as deltas in ascending order. Input
+ * connections are not stored, they are restored by connecting the outputs.
+ * <p>
+ * Connections within a single sub-circuit are not stored either, as they are linked when the sub-circuit is instanced.
+ * 
+ * @author bbayu123
+ *
+ */
+public final class CircuitFormat {
+    /**
+     * The magic number at the start of every circuit file, "RMC" followed by a zero byte
+     */
+    public static final int MAGIC = 0x524D4300;
+    /**
+     * The format version that is written
+     */
+    public static final int VERSION = 1;
+
+    private CircuitFormat() {
+    }
+
+    /**
+     * Saves a circuit
+     * 
+     * @param circuit the circuit to save
+     * @param stream  the data stream to write to
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    static void save(Circuit circuit, DataOutputStream stream) throws IOException {
+        stream.writeInt(MAGIC);
+        writeVarInt(stream, VERSION);
+        CRC32 crc = new CRC32();
+        DataOutputStream body = new DataOutputStream(new CheckedOutputStream(stream, crc));
+        // Write circuit dependencies
+        writeVarInt(body, circuit.subcircuits.length);
+        for (CircuitInstance c : circuit.subcircuits) {
+            body.writeUTF(c.source.name);
+        }
+        // Write the circuit data
+        writeVarInt(body, circuit.elements.length);
+        for (Component r : circuit.elements) {
+            r.saveCompact(body);
+        }
+        // Write connections
+        Component[] all = circuit.getAllElements();
+        int[] owners = getOwners(circuit, all.length);
+        writeVarInt(body, all.length);
+        for (Component r : all) {
+            writeOutputs(body, r, r.mainOutputs, owners);
+            writeOutputs(body, r, r.sideOutputs, owners);
+        }
+        body.flush();
+        stream.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Loads a circuit, after the magic number has been read
+     * 
+     * @param circuit the circuit to load
+     * @param stream  the data stream to read from
+     * @throws IOException if there is a problem reading from the data stream, or the data is corrupt
+     */
+    static void load(Circuit circuit, DataInputStream stream) throws IOException {
+        int version = readVarInt(stream);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported circuit format version: " + version);
+        }
+        CRC32 crc = new CRC32();
+        DataInputStream body = new DataInputStream(new CheckedInputStream(stream, crc));
+        // Read the sub-circuit dependencies
+        circuit.subcircuits = new CircuitInstance[readVarInt(body)];
+        for (int i = 0; i < circuit.subcircuits.length; i++) {
+            String cname = body.readUTF();
+            Circuit c = CircuitProvider.getDependency(cname);
+            if (c == null) {
+                throw new RuntimeException("Circuit dependency not found: " + cname);
+            } else {
+                circuit.subcircuits[i] = c.createInstance();
+            }
+        }
+        // Read the circuit data
+        circuit.elements = new Component[readVarInt(body)];
+        for (int i = 0; i < circuit.elements.length; i++) {
+            circuit.elements[i] = Component.loadCompactComponent(body);
+        }
+        circuit.initialize();
+        // Connect elements
+        Component[] all = circuit.getAllElements();
+        if (readVarInt(body) != all.length) {
+            throw new IOException("Circuit dependencies changed since the circuit was saved!");
+        }
+        for (Component r : all) {
+            readOutputs(body, r, all, false);
+            readOutputs(body, r, all, true);
+        }
+        if (stream.readInt() != (int) crc.getValue()) {
+            throw new IOException("Circuit data is corrupt: checksum mismatch!");
+        }
+    }
+
+    /**
+     * Reads the names of the sub-circuits a circuit file depends on, without loading the circuit
+     * 
+     * @param file the circuit file
+     * @return the names of the dependencies
+     * @throws IOException if there is a problem reading from the file
+     */
+    static String[] readDependencies(File file) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            DataInputStream stream = new DataInputStream(input);
+            int magic = stream.readInt();
+            int count;
+            if (magic == MAGIC) {
+                readVarInt(stream);
+                count = readVarInt(stream);
+            } else {
+                // Files written before the format was versioned start with the dependency count right away
+                byte[] header = ByteBuffer.allocate(4).putInt(magic).array();
+                stream = new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(header), input));
+                count = stream.readShort();
+            }
+            String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = stream.readUTF();
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Gets the direct sub-circuit every element belongs to, by element ID
+     * 
+     * @param circuit the circuit
+     * @param count   the amount of elements in the circuit and its sub-circuits
+     * @return the index of the sub-circuit, or -1 for the elements of the circuit itself
+     */
+    private static int[] getOwners(Circuit circuit, int count) {
+        int[] owners = new int[count];
+        Arrays.fill(owners, -1);
+        for (int i = 0; i < circuit.subcircuits.length; i++) {
+            for (Component r : circuit.subcircuits[i].getAllElements()) {
+                owners[r.getId()] = i;
+            }
+        }
+        return owners;
+    }
+
+    private static void writeOutputs(DataOutputStream stream, Component from, Set<Component> outputs, int[] owners) throws IOException {
+        int[] ids = new int[outputs.size()];
+        int count = 0;
+        int owner = owners[from.getId()];
+        for (Component output : outputs) {
+            if (owner == -1 || owners[output.getId()] != owner) {
+                ids[count++] = output.getId();
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        writeVarInt(stream, count);
+        int previous = from.getId();
+        for (int i = 0; i < count; i++) {
+            // the first delta is relative to the element itself and may be negative
+            int delta = ids[i] - previous;
+            writeVarInt(stream, i == 0 ? (delta << 1) ^ (delta >> 31) : delta);
+            previous = ids[i];
+        }
+    }
+
+    private static void readOutputs(DataInputStream stream, Component from, Component[] all, boolean side) throws IOException {
+        int count = readVarInt(stream);
+        int id = from.getId();
+        for (int i = 0; i < count; i++) {
+            int delta = readVarInt(stream);
+            id += i == 0 ? (delta >>> 1) ^ -(delta & 1) : delta;
+            if (id < 0 || id >= all.length) {
+                throw new IOException("Redstone element has a missing output!");
+            } else if (side) {
+                from.connectToSide(all[id]);
+            } else {
+                from.connectTo(all[id]);
+            }
+        }
+    }
+
+    /**
+     * Writes an unsigned variable-length integer, using 7 bits per byte
+     * 
+     * @param stream the data stream to write to
+     * @param value  the value to write
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    public static void writeVarInt(DataOutputStream stream, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            stream.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        stream.writeByte(value);
+    }
+
+    /**
+     * Reads an unsigned variable-length integer, using 7 bits per byte
+     * 
+     * @param stream the data stream to read from
+     * @return the value that was read
+     * @throws IOException if there is a problem reading from the data stream, or the value is too long
+     */
+    public static int readVarInt(DataInputStream stream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = stream.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Variable-length integer is too long");
+    }
+}
@@ -6,17 +6,45 @@ import java.io.File;
 import java.io.IOException;
 
 import com.bergerkiller.bukkit.rm.element.Component;
+import com.bergerkiller.bukkit.rm.element.PhysicalPort;
 import com.bergerkiller.bukkit.rm.element.Port;
 
 public class CircuitInstance extends CircuitBase {
     public Circuit source;
     public boolean isMain = false;
+    private NetlistEvaluator evaluator = null;
+    /**
+     * Whether the ports changed since this instance was last saved
+     */
+    private boolean dirty = true;
+    /**
+     * The tick from which none of the physical ports has been in a loaded chunk, or -1 if one is loaded
+     */
+    private int idleTick = -1;
+    /**
+     * The tick at which this instance was last used, by a lookup or a port input change
+     */
+    private int usedTick = TimingWheel.getCurrentTick();
+    /**
+     * The estimated memory size this instance is counted with in the loaded instance totals
+     */
+    long countedMemorySize = 0;
+    /**
+     * The sequence number of the last journal batch the loaded state includes, the batches up to it are not replayed
+     */
+    long journalSequence = 0;
 
     public CircuitInstance(Circuit source, String name) {
         this.source = source;
         this.name = name;
     }
 
+    @Override
+    public void initialize() {
+        // the elements of a bound instance keep the IDs of the shared netlist
+        this.initialize(this.evaluator == null);
+    }
+
     public boolean updateAlive() {
         for (Port p : this.getPorts()) {
             if (p.locations.size() > 0) {
@@ -29,13 +57,130 @@ public class CircuitInstance extends CircuitBase {
     }
 
     public void update() {
-        for (Component r : this.elements) {
-            r.update();
-            r.onPowerChange();
+        if (this.evaluator != null) {
+            this.evaluator.update();
+        }
+    }
+
+    /**
+     * Ticks all the elements in this instance that have a delay expiring
+     */
+    public void onTick() {
+        if (this.evaluator != null) {
+            this.evaluator.onTick();
+        }
+    }
+
+    /**
+     * Binds this instance to the evaluator that simulates it, which then notifies the ports of this instance
+     * 
+     * @param evaluator the evaluator
+     */
+    void bind(NetlistEvaluator evaluator) {
+        this.evaluator = evaluator;
+        for (Port port : this.getPorts()) {
+            evaluator.setPort(port.getId(), port);
+        }
+    }
+
+    /**
+     * Gets whether this instance changed since it was last saved or loaded
+     * 
+     * @return if this instance is dirty
+     */
+    public boolean isDirty() {
+        return this.dirty || (this.evaluator != null && this.evaluator.isChanged());
+    }
+
+    /**
+     * Marks this instance as changed, so it is saved by the next autosave
+     */
+    public void setDirty() {
+        this.dirty = true;
+    }
+
+    /**
+     * Marks this instance as unchanged, after it has been saved or loaded
+     */
+    public void setClean() {
+        this.dirty = false;
+        if (this.evaluator != null) {
+            this.evaluator.setUnchanged();
+        }
+    }
+
+    /**
+     * Gets whether none of the physical ports of this instance has been in a loaded chunk for a certain time
+     * 
+     * @param idleTicks the amount of ticks
+     * @return if this instance is idle
+     */
+    public boolean isIdle(int idleTicks) {
+        if (this.hasLoadedPorts()) {
+            this.idleTick = -1;
+            return false;
+        }
+        if (this.idleTick == -1) {
+            this.idleTick = TimingWheel.getCurrentTick();
         }
-        for (CircuitInstance ci : this.subcircuits) {
-            ci.update();
+        return TimingWheel.getCurrentTick() - this.idleTick >= idleTicks;
+    }
+
+    /**
+     * Gets whether one of the physical ports of this instance is in a loaded chunk
+     * 
+     * @return if a physical port is loaded
+     */
+    public boolean hasLoadedPorts() {
+        for (Port port : this.getPorts()) {
+            for (PhysicalPort pp : port.locations) {
+                if (pp.isLoaded()) {
+                    return true;
+                }
+            }
         }
+        return false;
+    }
+
+    /**
+     * Marks this instance as used, so it is evicted after the instances that were used longer ago
+     */
+    public void touch() {
+        this.usedTick = TimingWheel.getCurrentTick();
+    }
+
+    /**
+     * Gets the tick at which this instance was last used
+     * 
+     * @return the tick of last use
+     */
+    public int getUsedTick() {
+        return this.usedTick;
+    }
+
+    /**
+     * Estimates the amount of memory used by this instance, excluding what it shares with the other instances
+     * 
+     * @return the estimated size in bytes
+     */
+    public long getMemorySize() {
+        long size = 64;
+        for (Port port : this.getPorts()) {
+            size += 64 + 48 * port.locations.size();
+        }
+        if (this.evaluator != null) {
+            size += this.evaluator.getMemorySize();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the evaluator that simulates this instance
+     * 
+     * @return the evaluator, or null if this instance is not compiled
+     */
+    public NetlistEvaluator getEvaluator() {
+        return this.evaluator;
     }
 
     @Override
@@ -50,6 +195,31 @@ public class CircuitInstance extends CircuitBase {
 
     @Override
     public void load(DataInputStream dis) throws IOException {
+        if (this.evaluator != null) {
+            // the state of all elements, including those of the sub-circuits, is stored in the evaluator
+            CircuitNetlist netlist = this.evaluator.getNetlist();
+            for (int i = 0; i < netlist.size(); i++) {
+                boolean powered = dis.readBoolean();
+                int setdelay = 0;
+                boolean setMainPowered = false;
+                if (netlist.getDelay(i) > 0) {
+                    setdelay = dis.readInt();
+                    if (setdelay > 0) {
+                        setMainPowered = dis.readBoolean();
+                    }
+                }
+                this.evaluator.setState(i, powered, setdelay, setMainPowered);
+                if (netlist.getType(i) == CircuitNetlist.TYPE_PORT) {
+                    Port port = this.evaluator.getPort(i);
+                    if (port == null) {
+                        Port.skipPhysical(dis);
+                    } else {
+                        port.loadPhysical(dis);
+                    }
+                }
+            }
+            return;
+        }
         for (Component r : this.elements) {
             r.loadInstance(dis);
         }
@@ -61,6 +231,28 @@ public class CircuitInstance extends CircuitBase {
 
     @Override
     public void save(DataOutputStream dos) throws IOException {
+        if (this.evaluator != null) {
+            CircuitNetlist netlist = this.evaluator.getNetlist();
+            for (int i = 0; i < netlist.size(); i++) {
+                dos.writeBoolean(this.evaluator.getPoweredState(i));
+                if (netlist.getDelay(i) > 0) {
+                    int setdelay = this.evaluator.getRemainingDelay(i);
+                    dos.writeInt(setdelay);
+                    if (setdelay > 0) {
+                        dos.writeBoolean(this.evaluator.getDelayedMainPowered(i));
+                    }
+                }
+                if (netlist.getType(i) == CircuitNetlist.TYPE_PORT) {
+                    Port port = this.evaluator.getPort(i);
+                    if (port == null) {
+                        dos.writeShort(0);
+                    } else {
+                        port.savePhysical(dos);
+                    }
+                }
+            }
+            return;
+        }
         for (Component r : this.elements) {
             r.saveInstance(dos);
         }
@@ -0,0 +1,387 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+
+import com.bergerkiller.bukkit.rm.element.Component;
+
+/**
+ * A compiled, flat representation of a circuit and all its sub-circuits
+ * <p>
+ * Elements are identified by their element ID. Connections are stored as compressed sparse rows: the connections of
+ * element {@code i} are found in a targets array between {@code offsets[i]} and {@code offsets[i + 1]}.
+ * <p>
+ * The behavior of the element types is compiled into bit masks, so evaluating an element needs no dispatch on its
+ * type. Trees of zero-delay wires and inverters are collapsed into lookup tables, see {@link ConeCollapser}.
+ * 
+ * @author bbayu123
+ *
+ */
+public class CircuitNetlist {
+    public static final byte TYPE_WIRE = 0;
+    public static final byte TYPE_INVERTER = 1;
+    public static final byte TYPE_REPEATER = 2;
+    public static final byte TYPE_PORT = 3;
+
+    private static final int MAIN_OUTPUTS = 0;
+    private static final int SIDE_OUTPUTS = 1;
+
+    /**
+     * The amount of elements
+     */
+    final int size;
+    /**
+     * The type of every element
+     */
+    final byte[] types;
+    /**
+     * The delay of every element
+     */
+    final int[] delays;
+    /**
+     * Whether an element has no connections at all
+     */
+    final long[] disabled;
+    /**
+     * Whether an element outputs the inverse of its main input
+     */
+    final long[] inverting;
+    /**
+     * Whether an element keeps its power state while its side input is powered
+     */
+    final long[] locking;
+    /**
+     * Whether an element is skipped when updated, which are the disabled elements that are not ports
+     */
+    final long[] skipped;
+    /**
+     * The indices of the port elements, in ascending order
+     */
+    final int[] ports;
+    /**
+     * The lookup table cone of which an element is the root, or -1 if it is not the root of a cone
+     */
+    final int[] cones;
+    /**
+     * The inputs of every cone, the first input being the lowest bit of the table index
+     */
+    final int[] coneInputOffsets, coneInputs;
+    /**
+     * The main input power of the root of every cone, indexed by the power states of the cone inputs
+     */
+    final long[][] coneTables;
+    /**
+     * The main output connections
+     */
+    final int[] mainOutputOffsets, mainOutputTargets;
+    /**
+     * The side output connections
+     */
+    final int[] sideOutputOffsets, sideOutputTargets;
+
+    private CircuitNetlist(Component[] elements) {
+        this.size = elements.length;
+        this.types = new byte[this.size];
+        this.delays = new int[this.size];
+        this.disabled = new long[(this.size + 63) >>> 6];
+        this.inverting = new long[this.disabled.length];
+        this.locking = new long[this.disabled.length];
+        this.skipped = new long[this.disabled.length];
+        int portCount = 0;
+        for (int i = 0; i < this.size; i++) {
+            this.types[i] = elements[i].getType();
+            this.delays[i] = elements[i].getDelay();
+            long bit = 1L << i;
+            if (elements[i].isDisabled()) {
+                this.disabled[i >>> 6] |= bit;
+                if (this.types[i] != TYPE_PORT) {
+                    this.skipped[i >>> 6] |= bit;
+                }
+            }
+            if (this.types[i] == TYPE_INVERTER) {
+                this.inverting[i >>> 6] |= bit;
+            } else if (this.types[i] == TYPE_REPEATER) {
+                this.locking[i >>> 6] |= bit;
+            } else if (this.types[i] == TYPE_PORT) {
+                portCount++;
+            }
+        }
+        this.ports = new int[portCount];
+        portCount = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.types[i] == TYPE_PORT) {
+                this.ports[portCount++] = i;
+            }
+        }
+        int[] mainOffsets = new int[this.size + 1];
+        int[] mainTargets = compileConnections(elements, MAIN_OUTPUTS, mainOffsets);
+        this.sideOutputOffsets = new int[this.size + 1];
+        this.sideOutputTargets = compileConnections(elements, SIDE_OUTPUTS, this.sideOutputOffsets);
+
+        // Collapse the combinational cones
+        ConeCollapser collapser = new ConeCollapser(this.types, this.delays, this.disabled, mainOffsets, mainTargets, this.sideOutputOffsets, this.sideOutputTargets);
+        collapser.collapse();
+        this.mainOutputOffsets = collapser.collapsedMainOffsets;
+        this.mainOutputTargets = collapser.collapsedMainTargets;
+        this.cones = collapser.cones;
+        this.coneInputOffsets = collapser.coneInputOffsets;
+        this.coneInputs = collapser.coneInputs;
+        this.coneTables = collapser.coneTables;
+        for (int i = 0; i < this.skipped.length; i++) {
+            this.skipped[i] |= collapser.absorbed[i];
+        }
+    }
+
+    private CircuitNetlist(DataInputStream stream) throws IOException {
+        this.size = stream.readInt();
+        this.types = new byte[this.size];
+        stream.readFully(this.types);
+        this.delays = readInts(stream);
+        this.disabled = readLongs(stream);
+        this.inverting = readLongs(stream);
+        this.locking = readLongs(stream);
+        this.skipped = readLongs(stream);
+        this.ports = readInts(stream);
+        this.cones = readInts(stream);
+        this.coneInputOffsets = readInts(stream);
+        this.coneInputs = readInts(stream);
+        this.coneTables = new long[stream.readInt()][];
+        for (int i = 0; i < this.coneTables.length; i++) {
+            this.coneTables[i] = readLongs(stream);
+        }
+        this.mainOutputOffsets = readInts(stream);
+        this.mainOutputTargets = readInts(stream);
+        this.sideOutputOffsets = readInts(stream);
+        this.sideOutputTargets = readInts(stream);
+    }
+
+    /**
+     * Compiles a circuit and all its sub-circuits into a netlist
+     * <p>
+     * The element IDs of the circuit must be generated, as they are used as the element indices in the netlist.
+     * 
+     * @param circuit the circuit to compile
+     * @return the compiled netlist
+     */
+    public static CircuitNetlist compile(CircuitBase circuit) {
+        Component[] elements = circuit.getAllElements();
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i].getId() != i) {
+                throw new IllegalStateException("Element " + elements[i] + " of circuit '" + circuit.getFullName() + "' is out of sync with its ID");
+            }
+        }
+        return new CircuitNetlist(elements);
+    }
+
+    /**
+     * Reads a netlist written by {@link #write(DataOutputStream)}
+     * 
+     * @param stream the data stream to read from
+     * @return the netlist
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    public static CircuitNetlist read(DataInputStream stream) throws IOException {
+        return new CircuitNetlist(stream);
+    }
+
+    /**
+     * Writes this netlist, including its collapsed cones, so it can be read without compiling it again
+     * 
+     * @param stream the data stream to write to
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    public void write(DataOutputStream stream) throws IOException {
+        stream.writeInt(this.size);
+        stream.write(this.types);
+        writeInts(stream, this.delays);
+        writeLongs(stream, this.disabled);
+        writeLongs(stream, this.inverting);
+        writeLongs(stream, this.locking);
+        writeLongs(stream, this.skipped);
+        writeInts(stream, this.ports);
+        writeInts(stream, this.cones);
+        writeInts(stream, this.coneInputOffsets);
+        writeInts(stream, this.coneInputs);
+        stream.writeInt(this.coneTables.length);
+        for (long[] table : this.coneTables) {
+            writeLongs(stream, table);
+        }
+        writeInts(stream, this.mainOutputOffsets);
+        writeInts(stream, this.mainOutputTargets);
+        writeInts(stream, this.sideOutputOffsets);
+        writeInts(stream, this.sideOutputTargets);
+    }
+
+    /**
+     * Computes a SHA-256 digest of this netlist as written by {@link #write(DataOutputStream)}, which identifies the
+     * netlist that stored instance states belong to
+     * 
+     * @return the digest
+     * @throws IOException if SHA-256 is not supported
+     */
+    public byte[] computeDigest() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("No SHA-256 support", ex);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        this.write(new DataOutputStream(bytes));
+        return digest.digest(bytes.toByteArray());
+    }
+
+    private static int[] readInts(DataInputStream stream) throws IOException {
+        int[] values = new int[stream.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = stream.readInt();
+        }
+        return values;
+    }
+
+    private static long[] readLongs(DataInputStream stream) throws IOException {
+        long[] values = new long[stream.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = stream.readLong();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream stream, int[] values) throws IOException {
+        stream.writeInt(values.length);
+        for (int value : values) {
+            stream.writeInt(value);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream stream, long[] values) throws IOException {
+        stream.writeInt(values.length);
+        for (long value : values) {
+            stream.writeLong(value);
+        }
+    }
+
+    private static int[] compileConnections(Component[] elements, int kind, int[] offsets) {
+        int count = 0;
+        for (int i = 0; i < elements.length; i++) {
+            offsets[i] = count;
+            count += getConnections(elements[i], kind).size();
+        }
+        offsets[elements.length] = count;
+        int[] targets = new int[count];
+        int index = 0;
+        for (Component element : elements) {
+            for (Component target : getConnections(element, kind)) {
+                targets[index++] = target.getId();
+            }
+        }
+        return targets;
+    }
+
+    private static Set<Component> getConnections(Component element, int kind) {
+        if (kind == MAIN_OUTPUTS) {
+            return element.mainOutputs;
+        } else {
+            return element.sideOutputs;
+        }
+    }
+
+    /**
+     * Gets the amount of elements in this netlist
+     * 
+     * @return the amount of elements
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the type of an element
+     * 
+     * @param index the index of the element
+     * @return the type of the element
+     */
+    public byte getType(int index) {
+        return this.types[index];
+    }
+
+    /**
+     * Gets the delay of an element
+     * 
+     * @param index the index of the element
+     * @return the delay of the element
+     */
+    public int getDelay(int index) {
+        return this.delays[index];
+    }
+
+    /**
+     * Gets the position of a port element in the list of ports
+     * 
+     * @param index the index of the port element
+     * @return the port slot, or a negative value if the element is not a port
+     */
+    public int getPortSlot(int index) {
+        return Arrays.binarySearch(this.ports, index);
+    }
+
+    /**
+     * Gets the amount of lookup table cones
+     * 
+     * @return the amount of cones
+     */
+    public int getConeCount() {
+        return this.coneTables.length;
+    }
+
+    /**
+     * Gets whether an element has been collapsed into the lookup table of a cone, and is no longer evaluated
+     * 
+     * @param index the index of the element
+     * @return if the element is collapsed
+     */
+    public boolean isCollapsed(int index) {
+        return (this.skipped[index >>> 6] & ~this.disabled[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Gets whether an element has no connections at all
+     * 
+     * @param index the index of the element
+     * @return if the element is disabled
+     */
+    public boolean isDisabled(int index) {
+        return (this.disabled[index >>> 6] & (1L << index)) != 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = this.size;
+        hash = 31 * hash + Arrays.hashCode(this.types);
+        hash = 31 * hash + Arrays.hashCode(this.delays);
+        hash = 31 * hash + Arrays.hashCode(this.mainOutputTargets);
+        hash = 31 * hash + Arrays.hashCode(this.sideOutputTargets);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) {
+            return true;
+        }
+        if (!(object instanceof CircuitNetlist)) {
+            return false;
+        }
+        CircuitNetlist other = (CircuitNetlist) object;
+        return this.size == other.size && Arrays.equals(this.types, other.types) && Arrays.equals(this.delays, other.delays) && Arrays.equals(this.disabled, other.disabled)
+                && Arrays.equals(this.mainOutputOffsets, other.mainOutputOffsets) && Arrays.equals(this.mainOutputTargets, other.mainOutputTargets)
+                && Arrays.equals(this.sideOutputOffsets, other.sideOutputOffsets) && Arrays.equals(this.sideOutputTargets, other.sideOutputTargets)
+                && Arrays.equals(this.cones, other.cones) && Arrays.equals(this.coneInputs, other.coneInputs) && Arrays.deepEquals(this.coneTables, other.coneTables);
+    }
+}
@@ -0,0 +1,309 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+import com.bergerkiller.bukkit.rm.element.Component;
+import com.bergerkiller.bukkit.rm.element.Inverter;
+import com.bergerkiller.bukkit.rm.element.Port;
+import com.bergerkiller.bukkit.rm.element.Repeater;
+import com.bergerkiller.bukkit.rm.element.Wire;
+
+/**
+ * Simplifies the elements of a circuit using a pipeline of optimization passes
+ * <p>
+ * Passes only change the top-level elements of a circuit that are not ports, as other circuits and instances refer to
+ * ports and sub-circuit elements. Elements are removed by disconnecting them, after which they are dropped from the
+ * element array once all passes ran. The passes never change the timing of a circuit.
+ * 
+ * @author bbayu123
+ *
+ */
+public class CircuitOptimizer {
+    /**
+     * The passes of this optimizer, in the order they are run
+     */
+    private final List<Pass> passes = new ArrayList<>();
+
+    /**
+     * Creates an optimizer with the default passes
+     * 
+     * @return the optimizer
+     */
+    public static CircuitOptimizer createDefault() {
+        CircuitOptimizer optimizer = new CircuitOptimizer();
+        optimizer.addPass(new RepeaterChainPass());
+        optimizer.addPass(new InverterPairPass());
+        optimizer.addPass(new DeadElementPass());
+        return optimizer;
+    }
+
+    /**
+     * Adds a pass to the end of the pipeline
+     * 
+     * @param pass the pass to add
+     * @return this optimizer
+     */
+    public CircuitOptimizer addPass(Pass pass) {
+        this.passes.add(pass);
+        return this;
+    }
+
+    /**
+     * Runs all passes on a circuit and drops the removed elements, logging how many elements every pass removed
+     * 
+     * @param circuit the circuit to optimize
+     * @return the amount of elements removed from the element array
+     */
+    public int optimize(CircuitBase circuit) {
+        int oldCount = circuit.elements.length;
+        StringBuilder report = new StringBuilder();
+        for (Pass pass : this.passes) {
+            int removed = pass.apply(circuit);
+            if (report.length() > 0) {
+                report.append(", ");
+            }
+            report.append(pass.getName()).append(": ").append(removed);
+        }
+        compact(circuit);
+        int removed = oldCount - circuit.elements.length;
+        String name = circuit.name == null ? "new circuit" : "circuit '" + circuit.getFullName() + "'";
+        RedstoneMania.plugin.log(Level.FINE, "Optimized " + name + " from " + oldCount + " to " + circuit.elements.length + " elements (" + report + ")");
+        return removed;
+    }
+
+    /**
+     * Drops the disconnected elements from the element array and generates the element IDs again
+     * 
+     * @param circuit the optimized circuit
+     */
+    private static void compact(CircuitBase circuit) {
+        ArrayList<Component> elements = new ArrayList<>(circuit.elements.length);
+        for (Component element : circuit.elements) {
+            if (element instanceof Port || !element.isDisabled()) {
+                elements.add(element);
+            }
+        }
+        if (elements.size() < circuit.elements.length) {
+            circuit.elements = elements.toArray(new Component[0]);
+            circuit.initialize();
+        }
+    }
+
+    /**
+     * Gets whether an element may be changed or removed by a pass
+     * 
+     * @param circuit the circuit being optimized
+     * @param element the element
+     * @return if the element is optimizable
+     */
+    private static boolean isOptimizable(CircuitBase circuit, Component element) {
+        return element.getCircuit() == circuit && !(element instanceof Port);
+    }
+
+    /**
+     * Gets the single main output of an element that has no side connections and outputs to only one element
+     * 
+     * @param element the element
+     * @return the single output, or null if there is none
+     */
+    private static Component getSingleOutput(Component element) {
+        if (element.mainOutputs.size() != 1 || !element.sideOutputs.isEmpty() || !element.sideInputs.isEmpty()) {
+            return null;
+        }
+        Component output = element.mainOutputs.iterator().next();
+        if (output == element || output.mainInputs.size() != 1 || !output.sideInputs.isEmpty() || element.mainInputs.contains(output)) {
+            return null;
+        }
+        return output;
+    }
+
+    /**
+     * Gets whether an element outputs to one of the inputs of another element
+     * 
+     * @param element the element
+     * @param other   the other element
+     * @return if an output of the element is an input of the other element
+     */
+    private static boolean outputsToInputOf(Component element, Component other) {
+        for (Component input : other.mainInputs) {
+            if (element.mainOutputs.contains(input) || element.sideOutputs.contains(input)) {
+                return true;
+            }
+        }
+        for (Component input : other.sideInputs) {
+            if (element.mainOutputs.contains(input) || element.sideOutputs.contains(input)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A single optimization pass
+     */
+    public interface Pass {
+        /**
+         * Gets the name of this pass, as shown in the optimization report
+         * 
+         * @return the name
+         */
+        String getName();
+
+        /**
+         * Applies this pass to a circuit
+         * 
+         * @param circuit the circuit to optimize
+         * @return the amount of elements removed
+         */
+        int apply(CircuitBase circuit);
+    }
+
+    /**
+     * Folds repeaters that only feed another repeater into that repeater
+     * <p>
+     * At most one of the two repeaters may have a delay. Two delayed repeaters filter short pulses differently than a
+     * single repeater with the summed delay would, so those are kept.
+     */
+    private static class RepeaterChainPass implements Pass {
+        @Override
+        public String getName() {
+            return "repeater chains";
+        }
+
+        @Override
+        public int apply(CircuitBase circuit) {
+            int removed = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Component first : circuit.elements) {
+                    if (!(first instanceof Repeater) || !isOptimizable(circuit, first)) {
+                        continue;
+                    }
+                    Component second = getSingleOutput(first);
+                    if (!(second instanceof Repeater) || !isOptimizable(circuit, second)) {
+                        continue;
+                    }
+                    if (first.getDelay() > 0 && second.getDelay() > 0) {
+                        continue;
+                    }
+                    second.setDelay(first.getDelay() + second.getDelay());
+                    first.transfer(second);
+                    removed++;
+                    changed = true;
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Replaces inverters that only feed another inverter, which together just buffer the signal
+     * <p>
+     * Without delay the pair is removed and its inputs connect straight to its outputs. If one of the two inverters has
+     * a delay, the pair is replaced with a repeater of that delay. A pair without delay that feeds back into its own
+     * input, such as a latch, is kept, as the feedback would otherwise become a link of an element to itself.
+     */
+    private static class InverterPairPass implements Pass {
+        @Override
+        public String getName() {
+            return "inverter pairs";
+        }
+
+        @Override
+        public int apply(CircuitBase circuit) {
+            int removed = 0;
+            for (int i = 0; i < circuit.elements.length; i++) {
+                Component first = circuit.elements[i];
+                if (!(first instanceof Inverter) || !isOptimizable(circuit, first)) {
+                    continue;
+                }
+                Component second = getSingleOutput(first);
+                if (!(second instanceof Inverter) || !isOptimizable(circuit, second)) {
+                    continue;
+                }
+                if (first.mainInputs.isEmpty() || (first.getDelay() > 0 && second.getDelay() > 0)) {
+                    continue;
+                }
+                int delay = first.getDelay() + second.getDelay();
+                if (delay == 0 && outputsToInputOf(second, first)) {
+                    continue;
+                }
+                Component buffer = delay > 0 ? new Repeater() : new Wire();
+                buffer.setData(second);
+                buffer.setDelay(delay);
+                buffer.setPosition(second.getX(), second.getZ());
+                buffer.setCircuit(circuit);
+                second.transfer(buffer);
+                first.transfer(buffer);
+                for (int j = 0; j < circuit.elements.length; j++) {
+                    if (circuit.elements[j] == second) {
+                        circuit.elements[j] = buffer;
+                    }
+                }
+                if (delay > 0) {
+                    removed++;
+                } else {
+                    // the wire is no more than a junction
+                    for (Component input : buffer.mainInputs) {
+                        for (Component output : buffer.mainOutputs) {
+                            input.connectTo(output);
+                        }
+                        for (Component output : buffer.sideOutputs) {
+                            input.connectToSide(output);
+                        }
+                    }
+                    buffer.disconnectAll();
+                    removed += 2;
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Removes elements that feed nothing, and unpowered non-inverting elements without inputs which never change
+     * <p>
+     * An unpowered inverter without inputs is not constant, as it turns on once it is updated.
+     */
+    private static class DeadElementPass implements Pass {
+        @Override
+        public String getName() {
+            return "dead elements";
+        }
+
+        @Override
+        public int apply(CircuitBase circuit) {
+            Set<Component> removed = new HashSet<>();
+            ArrayDeque<Component> pending = new ArrayDeque<>();
+            for (Component element : circuit.elements) {
+                pending.add(element);
+            }
+            while (!pending.isEmpty()) {
+                Component element = pending.poll();
+                if (removed.contains(element) || !isOptimizable(circuit, element)) {
+                    continue;
+                }
+                boolean dead = element.mainOutputs.isEmpty() && element.sideOutputs.isEmpty();
+                boolean constant = element.mainInputs.isEmpty() && element.sideInputs.isEmpty() && !element.hasPower() && !(element instanceof Inverter);
+                if (!dead && !constant) {
+                    continue;
+                }
+                removed.add(element);
+                // neighbours may have become dead or constant
+                pending.addAll(element.mainInputs);
+                pending.addAll(element.sideInputs);
+                pending.addAll(element.mainOutputs);
+                pending.addAll(element.sideOutputs);
+                element.disconnectAll();
+            }
+            return removed.size();
+        }
+    }
+}
@@ -1,16 +1,60 @@
 package com.bergerkiller.bukkit.rm.circuit;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 
+import org.bukkit.Chunk;
+
+import com.bergerkiller.bukkit.common.BlockLocation;
 import com.bergerkiller.bukkit.rm.RedstoneMania;
 import com.bergerkiller.bukkit.rm.element.PhysicalPort;
 
 public class CircuitProvider {
     private static Map<String, Circuit> circuits = new HashMap<>();
+    /**
+     * The circuits loaded so far by {@link #loadAll()}, or null if it is not loading
+     */
+    private static volatile Map<String, Circuit> loading = null;
+    /**
+     * The stored instances that are not loaded, by world name and by the chunks of their physical ports
+     */
+    private static Map<String, Map<Long, Set<DormantInstance>>> dormant = new HashMap<>();
+    /**
+     * The amount of instance lookups that found the instance loaded
+     */
+    static long hits = 0;
+    /**
+     * The amount of instance lookups that had to load the instance from the instance store
+     */
+    static long misses = 0;
+    /**
+     * The amount of instances unloaded to stay within the instance cache limits
+     */
+    private static long evictions = 0;
+    /**
+     * The amount of loaded instances
+     */
+    private static int loadedCount = 0;
+    /**
+     * The estimated memory size of the loaded instances, as counted when they were loaded
+     */
+    private static long loadedBytes = 0;
 
     /**
      * Gets or loads a Circuit
@@ -28,36 +72,63 @@ public class CircuitProvider {
         File source = getCircuitFile(name);
         if (source.exists()) {
             c = load(name);
-            if (c != null) {
-                try {
-                    // Load circuit instances if available
-                    File instanceFolder = c.getInstanceFolder();
-                    for (String instanceName : instanceFolder.list()) {
-                        if (instanceName.toLowerCase().endsWith(".instance")) {
-                            instanceName = instanceName.substring(0, instanceName.length() - 9);
-                            CircuitInstance ci = c.createInstance(instanceName);
-                            if (ci != null && ci.load()) {
-                                ci.update();
-                                ci.updateAlive();
-                            } else {
-                                // Delete this instance
-                                File instanceFile = new File(instanceFolder, instanceName);
-                                instanceFile.delete();
-                            }
-                        }
-                    }
-                    // Add the circuit
-                    add(c);
-                    return c;
-                } catch (Throwable t) {
-                    RedstoneMania.plugin.log(Level.SEVERE, "An error occurred while loading the instances of circuit '" + name + "':");
-                    t.printStackTrace();
-                }
+            if (attach(c)) {
+                return c;
             }
         }
 
         // Do instances of this circuit name exist?
         // If so, delete these instances
+        deleteInstances(name);
+        return null;
+    }
+
+    /**
+     * Gets a circuit that another circuit depends on, while that circuit is loading
+     * <p>
+     * During {@link #loadAll()} the dependency is taken from the circuits loaded so far, which are loaded before the
+     * circuits that depend on them. Otherwise it is the same as {@link #get(String)}.
+     * 
+     * @param name of the Circuit to get
+     * @return the Circuit, or null if it could not be found
+     */
+    static Circuit getDependency(String name) {
+        Map<String, Circuit> loading = CircuitProvider.loading;
+        if (loading != null) {
+            return loading.get(name);
+        }
+        return get(name);
+    }
+
+    /**
+     * Loads the instances of a loaded circuit and adds the circuit
+     * 
+     * @param c the circuit, or null if it failed to load
+     * @return if the circuit was added
+     */
+    private static boolean attach(Circuit c) {
+        if (c == null) {
+            return false;
+        }
+        try {
+            // Load circuit instances if available
+            c.loadInstances();
+            // Add the circuit
+            add(c);
+            return true;
+        } catch (Throwable t) {
+            RedstoneMania.plugin.log(Level.SEVERE, "An error occurred while loading the instances of circuit '" + c.name + "':");
+            t.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the instances of a circuit that could not be loaded, if there are any
+     * 
+     * @param name of the Circuit
+     */
+    private static void deleteInstances(String name) {
         File instanceFolder = getInstancesFolder(name);
         if (instanceFolder.exists()) {
             RedstoneMania.plugin.log(Level.WARNING, "Circuit instances of '" + name + "' will be deleted, because the circuit no longer exists!");
@@ -72,12 +143,14 @@ public class CircuitProvider {
                 ex.printStackTrace();
             }
         }
-        return null;
     }
 
     public static void add(Circuit circuit) {
         if (circuit != null) {
-            if (!circuit.isSaved()) circuit.save();
+            if (!circuit.isSaved()) {
+                circuit.save();
+                CircuitWatcher.ignore(circuit.name);
+            }
             circuits.put(circuit.name, circuit);
         }
     }
@@ -89,6 +162,52 @@ public class CircuitProvider {
         }
     }
 
+    /**
+     * Replaces the definition of a circuit and moves its instances onto the new definition right away
+     * <p>
+     * The file of the circuit is only overwritten once the new definition compiles, and written back if the instances
+     * could not be moved, so a circuit that can not be redefined keeps running and is loaded as it was.
+     * 
+     * @param circuit the new definition
+     * @param name    of the Circuit
+     * @return if the circuit is redefined
+     */
+    public static boolean redefine(Circuit circuit, String name) {
+        circuit.name = name;
+        File file = getCircuitFile(name);
+        byte[] previousData = null;
+        try {
+            if (file.exists()) {
+                previousData = Files.readAllBytes(file.toPath());
+            }
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to read circuit '" + name + "': " + ex.getMessage());
+            return false;
+        }
+        if (!circuit.compile() || !circuit.save()) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Circuit '" + name + "' could not be redefined, it keeps running as it was");
+            return false;
+        }
+        CircuitWatcher.ignore(name);
+        if (!circuits.containsKey(name)) {
+            circuits.put(name, circuit);
+            return true;
+        }
+        reload(Collections.singleton(name), Collections.singletonMap(name, circuit));
+        if (circuits.get(name) == circuit) {
+            return true;
+        }
+        if (previousData != null) {
+            try {
+                Files.write(file.toPath(), previousData);
+                CircuitWatcher.ignore(name);
+            } catch (IOException ex) {
+                RedstoneMania.plugin.log(Level.SEVERE, "Failed to restore circuit '" + name + "': " + ex.getMessage());
+            }
+        }
+        return false;
+    }
+
     public static Collection<Circuit> all() {
         return circuits.values();
     }
@@ -96,7 +215,9 @@ public class CircuitProvider {
     public static boolean unload(String name) {
         Circuit c = circuits.remove(name);
         if (c != null) {
-
+            for (CircuitInstance ci : c.getInstances()) {
+                onUnloaded(ci);
+            }
             return true;
         } else {
             return false;
@@ -127,15 +248,521 @@ public class CircuitProvider {
         return names;
     }
 
+    /**
+     * Loads all circuits that have instances, and the circuits they depend on
+     * <p>
+     * The dependencies of every circuit are read first. The circuits are then loaded and compiled in parallel, a
+     * circuit only after the circuits it depends on. Circuits that are part of a dependency cycle, or that depend on a
+     * circuit that can not be loaded, are not loaded. The instances are loaded on the calling thread afterwards.
+     * <p>
+     * Circuits that did not change since they were last compiled, including the circuits they depend on, are loaded
+     * from the {@link NetlistCache}.
+     */
     public static void loadAll() {
-        for (String circuitname : getInstancesFolder().list()) {
-            get(circuitname);
+        final long start = System.nanoTime();
+        // Read the dependencies of every circuit to load
+        final Map<String, String[]> dependencies = new HashMap<>();
+        ArrayDeque<String> pending = new ArrayDeque<>(Arrays.asList(getInstancesFolder().list()));
+        while (!pending.isEmpty()) {
+            String name = pending.poll();
+            if (circuits.containsKey(name) || dependencies.containsKey(name)) {
+                continue;
+            }
+            String[] names = null;
+            File source = getCircuitFile(name);
+            if (source.exists()) {
+                try {
+                    names = CircuitFormat.readDependencies(source);
+                    pending.addAll(Arrays.asList(names));
+                } catch (IOException ex) {
+                    RedstoneMania.plugin.log(Level.SEVERE, "Failed to read the dependencies of circuit '" + name + "': " + ex.getMessage());
+                }
+            }
+            dependencies.put(name, names);
+        }
+
+        // Group the circuits by depth, every circuit comes after the circuits it depends on
+        Map<String, Integer> depths = new HashMap<>();
+        List<List<String>> levels = new ArrayList<>();
+        for (String name : dependencies.keySet()) {
+            int depth = getDepth(name, dependencies, depths, new HashSet<String>());
+            if (depth < 0) {
+                continue;
+            }
+            while (levels.size() <= depth) {
+                levels.add(new ArrayList<String>());
+            }
+            levels.get(depth).add(name);
+        }
+
+        // Load the circuits of every level in parallel
+        loading = new ConcurrentHashMap<>(circuits);
+        final Map<String, byte[]> keys = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (List<String> level : levels) {
+                List<Callable<Circuit>> tasks = new ArrayList<>(level.size());
+                for (final String name : level) {
+                    tasks.add(new Callable<Circuit>() {
+                        @Override
+                        public Circuit call() {
+                            try {
+                                Circuit c = loadCompiled(name, dependencies.get(name), keys);
+                                if (c != null) {
+                                    loading.put(name, c);
+                                }
+                            } catch (Throwable t) {
+                                RedstoneMania.plugin.log(Level.SEVERE, "An error occurred while loading circuit '" + name + "':");
+                                t.printStackTrace();
+                            }
+                            return null;
+                        }
+                    });
+                }
+                pool.invokeAll(tasks);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Map<String, Circuit> loaded = loading;
+        loading = null;
+
+        // Load the instances of the circuits, or delete them if the circuit could not be loaded
+        int count = 0;
+        for (String name : dependencies.keySet()) {
+            if (attach(loaded.get(name))) {
+                count++;
+            } else {
+                deleteInstances(name);
+            }
+        }
+        RedstoneMania.plugin.log(Level.INFO, "Loaded " + count + " circuits in " + ((System.nanoTime() - start) / 1000000) + " ms");
+
+        // Apply the changes made since the last save, and save them right away
+        int replayed = InstanceJournal.replay();
+        InstanceJournal.enable();
+        if (replayed > 0) {
+            RedstoneMania.plugin.log(Level.INFO, "Replayed " + replayed + " circuit instance changes from the journal");
+            for (Circuit c : circuits.values()) {
+                c.saveInstances();
+            }
+            InstanceJournal.checkpoint();
+        }
+    }
+
+    /**
+     * Loads and compiles a circuit, or loads it from the netlist cache if it and its dependencies did not change
+     * 
+     * @param name            of the Circuit
+     * @param dependencyNames the names of the circuits it depends on
+     * @param keys            the cache keys of the circuits loaded so far, the key of this circuit is added to it
+     * @return the compiled Circuit, or null if it could not be loaded
+     */
+    private static Circuit loadCompiled(String name, String[] dependencyNames, Map<String, byte[]> keys) {
+        byte[][] dependencyKeys = new byte[dependencyNames.length][];
+        byte[] key = null;
+        for (int i = 0; i < dependencyNames.length; i++) {
+            dependencyKeys[i] = keys.get(dependencyNames[i]);
+            if (dependencyKeys[i] == null) {
+                // Loaded before, so the key is not known
+                dependencyKeys = null;
+                break;
+            }
+        }
+        if (dependencyKeys != null) {
+            try {
+                key = NetlistCache.computeKey(getCircuitFile(name), dependencyKeys);
+                keys.put(name, key);
+                Circuit c = new Circuit();
+                c.name = name;
+                if (NetlistCache.load(c, key)) {
+                    return c;
+                }
+            } catch (IOException ex) {
+                RedstoneMania.plugin.log(Level.WARNING, "Failed to read circuit '" + name + "' to check the netlist cache: " + ex.getMessage());
+            }
+        }
+        Circuit c = load(name);
+        if (c == null || !c.compile()) {
+            return null;
+        }
+        if (key != null) {
+            NetlistCache.save(c, key);
+        }
+        return c;
+    }
+
+    /**
+     * Loads changed circuits again, along with the loaded circuits that depend on them, and moves their instances
+     * onto the new definitions
+     * <p>
+     * Circuits that are not loaded are skipped, they are read once they are needed. A circuit that can not be loaded
+     * again keeps running with its previous definition. All other circuits and instances are left untouched.
+     * 
+     * @param names of the changed circuits
+     * @return the amount of circuits loaded again
+     */
+    public static int reload(Collection<String> names) {
+        return reload(names, Collections.<String, Circuit> emptyMap());
+    }
+
+    /**
+     * Replaces changed circuits, along with the loaded circuits that depend on them, and moves their instances onto
+     * the new definitions
+     * 
+     * @param names       of the changed circuits
+     * @param definitions the new definitions of changed circuits, the other circuits are loaded from their file
+     * @return the amount of circuits replaced
+     * @see #reload(Collection)
+     */
+    private static int reload(Collection<String> names, Map<String, Circuit> definitions) {
+        final long start = System.nanoTime();
+        // Find the loaded circuits that depend on the changed circuits
+        Map<String, String[]> dependencies = new HashMap<>();
+        for (String name : circuits.keySet()) {
+            try {
+                dependencies.put(name, CircuitFormat.readDependencies(getCircuitFile(name)));
+            } catch (IOException ex) {
+                dependencies.put(name, new String[0]);
+            }
+        }
+        Set<String> affected = new HashSet<>();
+        for (String name : names) {
+            if (circuits.containsKey(name)) {
+                affected.add(name);
+            }
+        }
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (Map.Entry<String, String[]> entry : dependencies.entrySet()) {
+                if (!affected.contains(entry.getKey())) {
+                    for (String dependency : entry.getValue()) {
+                        if (affected.contains(dependency)) {
+                            affected.add(entry.getKey());
+                            found = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Load them again, every circuit after the circuits it depends on
+        int count = 0;
+        Set<String> done = new HashSet<>();
+        while (done.size() < affected.size()) {
+            String next = null;
+            for (String name : affected) {
+                if (done.contains(name)) {
+                    continue;
+                }
+                next = name;
+                for (String dependency : dependencies.get(name)) {
+                    if (affected.contains(dependency) && !done.contains(dependency)) {
+                        next = null;
+                        break;
+                    }
+                }
+                if (next != null) {
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            done.add(next);
+            Circuit previous = circuits.get(next);
+            Circuit c = definitions.get(next);
+            if (c == null && getCircuitFile(next).exists()) {
+                c = load(next);
+            }
+            if (c == null || !c.compile()) {
+                RedstoneMania.plugin.log(Level.SEVERE, "Circuit '" + next + "' could not be loaded again, it keeps running as it was");
+                continue;
+            }
+            circuits.put(next, c);
+            if (c.migrateInstances(previous) < 0) {
+                circuits.put(next, previous);
+                RedstoneMania.plugin.log(Level.SEVERE, "The instances of circuit '" + next + "' could not be moved, it keeps running as it was");
+                continue;
+            }
+            count++;
+        }
+        InstanceJournal.checkpoint();
+        RedstoneMania.plugin.log(Level.INFO, "Reloaded " + count + " circuits in " + ((System.nanoTime() - start) / 1000000) + " ms");
+        return count;
+    }
+
+    /**
+     * Gets the amount of circuits a circuit depends on through its deepest chain of dependencies
+     * 
+     * @param name         of the Circuit
+     * @param dependencies the dependencies of every circuit to load, null for circuits that can not be loaded
+     * @param depths       the depths computed so far
+     * @param visiting     the circuits of the chain that is being followed
+     * @return the depth, or -1 if the circuit can not be loaded
+     */
+    private static int getDepth(String name, Map<String, String[]> dependencies, Map<String, Integer> depths, Set<String> visiting) {
+        Integer depth = depths.get(name);
+        if (depth != null) {
+            return depth.intValue();
+        }
+        String[] names = dependencies.get(name);
+        if (names == null) {
+            depths.put(name, -1);
+            return -1;
+        }
+        if (!visiting.add(name)) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Circuit '" + name + "' depends on itself through its sub-circuits!");
+            depths.put(name, -1);
+            return -1;
+        }
+        int result = 0;
+        for (String dependency : names) {
+            if (circuits.containsKey(dependency)) {
+                continue;
+            }
+            int dependencyDepth = getDepth(dependency, dependencies, depths, visiting);
+            if (dependencyDepth < 0) {
+                if (depths.get(name) == null) {
+                    RedstoneMania.plugin.log(Level.SEVERE, "Circuit '" + name + "' can not be loaded, because dependency '" + dependency + "' can not be loaded!");
+                }
+                result = -1;
+                break;
+            }
+            result = Math.max(result, dependencyDepth + 1);
+        }
+        visiting.remove(name);
+        if (depths.get(name) == null) {
+            depths.put(name, result);
+        }
+        return depths.get(name).intValue();
+    }
+
+    /**
+     * Saves the circuit instances that changed since they were last saved
+     * <p>
+     * The instances are written on a background thread, which logs how many were written and how long it took. The
+     * journal segments written before the save are deleted once it completes.
+     */
+    public static void autosave() {
+        final long start = System.nanoTime();
+        int count = 0;
+        for (Circuit c : circuits.values()) {
+            count += Math.max(0, c.saveDirtyInstances());
+        }
+        InstanceJournal.checkpoint();
+        if (count == 0) {
+            return;
+        }
+        final int saved = count;
+        final long snapshotTime = System.nanoTime() - start;
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                long time = System.nanoTime() - start;
+                RedstoneMania.plugin.log(Level.INFO, "Autosaved " + saved + " circuit instances in " + (time / 1000000) + " ms (" + (snapshotTime / 1000000) + " ms on the main thread)");
+            }
+        });
+    }
+
+    /**
+     * Registers a stored instance that is not loaded, so it is loaded once one of the chunks of its physical ports
+     * loads
+     * 
+     * @param circuit   the circuit of the instance
+     * @param name      of the instance
+     * @param locations the locations of the physical ports of the instance
+     */
+    static void addDormant(Circuit circuit, String name, Collection<BlockLocation> locations) {
+        DormantInstance instance = new DormantInstance(circuit, name);
+        for (BlockLocation location : locations) {
+            Map<Long, Set<DormantInstance>> chunks = dormant.get(location.world);
+            if (chunks == null) {
+                chunks = new HashMap<>();
+                dormant.put(location.world, chunks);
+            }
+            Long key = getChunkKey(location.x >> 4, location.z >> 4);
+            Set<DormantInstance> instances = chunks.get(key);
+            if (instances == null) {
+                instances = new HashSet<>();
+                chunks.put(key, instances);
+            }
+            instances.add(instance);
+        }
+    }
+
+    /**
+     * Loads the stored instances that are not loaded and have a physical port in a chunk
+     * 
+     * @param chunk that loaded
+     */
+    public static void loadInstances(Chunk chunk) {
+        Map<Long, Set<DormantInstance>> chunks = dormant.get(chunk.getWorld().getName());
+        if (chunks == null) {
+            return;
+        }
+        Set<DormantInstance> instances = chunks.remove(getChunkKey(chunk.getX(), chunk.getZ()));
+        if (instances == null) {
+            return;
+        }
+        for (DormantInstance instance : instances) {
+            // Skip the instances that were loaded or removed since
+            if (circuits.get(instance.circuit.name) == instance.circuit && instance.circuit.isDormant(instance.name)) {
+                instance.circuit.getInstance(instance.name);
+            }
+        }
+    }
+
+    /**
+     * Saves and unloads the instances of which no physical port has been in a loaded chunk for a certain time
+     * 
+     * @param idleTicks the amount of ticks
+     */
+    public static void unloadIdle(int idleTicks) {
+        int count = 0;
+        for (Circuit c : circuits.values()) {
+            count += c.unloadIdleInstances(idleTicks);
+        }
+        if (count > 0) {
+            RedstoneMania.plugin.log(Level.FINE, "Unloaded " + count + " idle circuit instances");
         }
     }
 
+    /**
+     * Counts an instance that was loaded in the loaded instance totals
+     * 
+     * @param ci the instance
+     */
+    static void onLoaded(CircuitInstance ci) {
+        ci.countedMemorySize = ci.getMemorySize();
+        loadedCount++;
+        loadedBytes += ci.countedMemorySize;
+    }
+
+    /**
+     * No longer counts an instance that was unloaded in the loaded instance totals
+     * 
+     * @param ci the instance
+     */
+    static void onUnloaded(CircuitInstance ci) {
+        loadedCount--;
+        loadedBytes -= ci.countedMemorySize;
+    }
+
+    /**
+     * Saves and unloads the least recently used instances until the loaded instances are within the limits
+     * <p>
+     * Only instances without physical ports in loaded chunks are unloaded, they are loaded again once one of these
+     * chunks loads or they are requested by name. The loaded instances are only scanned once the totals counted as they
+     * were loaded exceed a limit, the scan then counts their current size.
+     * 
+     * @param maxInstances the maximum amount of loaded instances, 0 for no limit
+     * @param maxBytes     the maximum estimated memory size of the loaded instances, 0 for no limit
+     */
+    public static void evict(int maxInstances, long maxBytes) {
+        if ((maxInstances <= 0 || loadedCount <= maxInstances) && (maxBytes <= 0 || loadedBytes <= maxBytes)) {
+            return;
+        }
+        int count = 0;
+        long bytes = 0;
+        List<CircuitInstance> candidates = new ArrayList<>();
+        for (Circuit c : circuits.values()) {
+            for (CircuitInstance ci : c.getInstances()) {
+                // physical ports may have been added or removed since the instance was counted
+                ci.countedMemorySize = ci.getMemorySize();
+                count++;
+                bytes += ci.countedMemorySize;
+                if (!ci.hasLoadedPorts()) {
+                    candidates.add(ci);
+                }
+            }
+        }
+        loadedCount = count;
+        loadedBytes = bytes;
+        if ((maxInstances <= 0 || count <= maxInstances) && (maxBytes <= 0 || bytes <= maxBytes)) {
+            return;
+        }
+        Collections.sort(candidates, new Comparator<CircuitInstance>() {
+            @Override
+            public int compare(CircuitInstance a, CircuitInstance b) {
+                return Integer.compare(a.getUsedTick(), b.getUsedTick());
+            }
+        });
+        Map<Circuit, List<CircuitInstance>> unload = new HashMap<>();
+        int evicted = 0;
+        for (CircuitInstance ci : candidates) {
+            if ((maxInstances <= 0 || count <= maxInstances) && (maxBytes <= 0 || bytes <= maxBytes)) {
+                break;
+            }
+            List<CircuitInstance> instances = unload.get(ci.source);
+            if (instances == null) {
+                instances = new ArrayList<>();
+                unload.put(ci.source, instances);
+            }
+            instances.add(ci);
+            count--;
+            bytes -= ci.countedMemorySize;
+            evicted++;
+        }
+        for (Map.Entry<Circuit, List<CircuitInstance>> entry : unload.entrySet()) {
+            entry.getKey().unloadInstances(entry.getValue());
+        }
+        evictions += evicted;
+        if (evicted > 0) {
+            RedstoneMania.plugin.log(Level.FINE, "Evicted " + evicted + " circuit instances from memory");
+        }
+    }
+
+    /**
+     * Gets the amount of instance lookups that found the instance loaded
+     * 
+     * @return the amount of cache hits
+     */
+    public static long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the amount of instance lookups that had to load the instance from the instance store, including the
+     * instances loaded because a chunk of one of their physical ports loaded
+     * 
+     * @return the amount of cache misses
+     */
+    public static long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the amount of instances unloaded to stay within the instance cache limits
+     * 
+     * @return the amount of evictions
+     */
+    public static long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Gets the amount of loaded instances of all circuits
+     * 
+     * @return the amount of loaded instances
+     */
+    public static int getLoadedCount() {
+        return loadedCount;
+    }
+
+    private static long getChunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
     public static void clearAll() {
         circuits.clear();
+        loadedCount = 0;
+        loadedBytes = 0;
+        dormant.clear();
         PhysicalPort.clearAll();
+        NetlistEvaluator.clearActive();
     }
 
     public static File getCircuitsFolder() {
@@ -157,4 +784,31 @@ public class CircuitProvider {
     public static File getCircuitFile(String name) {
         return new File(getCircuitsFolder(), name + ".circuit");
     }
+
+    /**
+     * A stored instance that is not loaded
+     */
+    private static class DormantInstance {
+        private final Circuit circuit;
+        private final String name;
+
+        public DormantInstance(Circuit circuit, String name) {
+            this.circuit = circuit;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.circuit.hashCode() * 31 + this.name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof DormantInstance)) {
+                return false;
+            }
+            DormantInstance other = (DormantInstance) object;
+            return this.circuit == other.circuit && this.name.equals(other.name);
+        }
+    }
 }
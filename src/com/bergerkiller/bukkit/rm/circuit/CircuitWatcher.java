@@ -0,0 +1,154 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+
+/**
+ * Watches the circuits folder for changed circuit files, and loads the changed circuits again
+ * <p>
+ * The folder is watched on a background thread, which only records which files changed. The changes are picked up on
+ * the main thread by {@link #poll()} once a file has not changed for a moment, so a file is not read while it is
+ * still being written.
+ * 
+ * @author bbayu123
+ *
+ */
+public class CircuitWatcher {
+    /**
+     * The time in milliseconds a file must not have changed before it is loaded again
+     */
+    private static final long SETTLE_TIME = 500;
+
+    /**
+     * The watch service, or null if the watcher is not started
+     */
+    private static WatchService service = null;
+    /**
+     * The time at which every changed circuit file last changed, by circuit name
+     */
+    private static final Map<String, Long> changed = new ConcurrentHashMap<>();
+    /**
+     * The last known version of every circuit file, so files written by the plugin itself are not loaded again
+     */
+    private static final Map<String, Long> versions = new HashMap<>();
+
+    /**
+     * Starts watching the circuits folder
+     */
+    public static void start() {
+        if (service != null) {
+            return;
+        }
+        File folder = CircuitProvider.getCircuitsFolder();
+        for (String name : CircuitProvider.getNames()) {
+            versions.put(name, getVersion(CircuitProvider.getCircuitFile(name)));
+        }
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.WARNING, "Failed to watch the circuits folder, changed circuits are not loaded again: " + ex.getMessage());
+            stop();
+            return;
+        }
+        final WatchService service = CircuitWatcher.service;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = service.take();
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.context() instanceof Path) {
+                                String fileName = event.context().toString();
+                                if (fileName.toLowerCase().endsWith(".circuit")) {
+                                    changed.put(fileName.substring(0, fileName.length() - 8), System.currentTimeMillis());
+                                }
+                            }
+                        }
+                        key.reset();
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    // stopped
+                }
+            }
+        }, "RedstoneMania circuit watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the circuits folder
+     */
+    public static void stop() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ex) {
+                // the thread stops either way
+            }
+            service = null;
+        }
+        changed.clear();
+        versions.clear();
+    }
+
+    /**
+     * Loads the circuits of which the file changed again, once the file has not changed for a moment
+     */
+    public static void poll() {
+        if (changed.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, Long> entry : changed.entrySet()) {
+            if (now - entry.getValue() < SETTLE_TIME) {
+                continue;
+            }
+            if (!changed.remove(entry.getKey(), entry.getValue())) {
+                // changed again in the meantime
+                continue;
+            }
+            File file = CircuitProvider.getCircuitFile(entry.getKey());
+            long version = getVersion(file);
+            Long previous = versions.put(entry.getKey(), version);
+            if (file.exists() && (previous == null || previous.longValue() != version)) {
+                names.add(entry.getKey());
+            }
+        }
+        if (!names.isEmpty()) {
+            CircuitProvider.reload(names);
+        }
+    }
+
+    /**
+     * Records that a circuit file was written by the plugin itself, so it is not loaded again
+     * 
+     * @param name of the circuit
+     */
+    static void ignore(String name) {
+        if (service != null) {
+            versions.put(name, getVersion(CircuitProvider.getCircuitFile(name)));
+        }
+    }
+
+    private static long getVersion(File file) {
+        return file.lastModified() * 31 + file.length();
+    }
+}
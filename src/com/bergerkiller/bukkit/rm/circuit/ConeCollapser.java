@@ -0,0 +1,362 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.util.Arrays;
+
+/**
+ * Collapses combinational cones of a netlist into lookup tables
+ * <p>
+ * A cone is a tree of zero-delay wires and inverters that each output to just a single other element of the tree. The
+ * root of the cone evaluates the whole tree with a single read from a truth table, indexed by the power states of the
+ * cone inputs. The other elements of the cone are no longer evaluated, and connections to them are redirected to the
+ * root.
+ * 
+ * @author bbayu123
+ *
+ */
+final class ConeCollapser {
+    /**
+     * The maximum amount of inputs of a single cone
+     */
+    static final int MAX_INPUTS = 16;
+    /**
+     * The truth table words of the first six inputs, as every word holds 64 entries
+     */
+    private static final long[] INPUT_PATTERNS = { 0xAAAAAAAAAAAAAAAAL, 0xCCCCCCCCCCCCCCCCL, 0xF0F0F0F0F0F0F0F0L, 0xFF00FF00FF00FF00L, 0xFFFF0000FFFF0000L,
+            0xFFFFFFFF00000000L };
+
+    private final int size;
+    private final byte[] types;
+    private final int[] delays;
+    private final long[] disabled;
+    private final int[] mainOffsets, mainTargets, sideOffsets, sideTargets;
+    /**
+     * The main input connections, built from the main output connections
+     */
+    private final int[] inputOffsets, inputSources;
+    /**
+     * Whether an element receives side input
+     */
+    private final long[] sideInput;
+    /**
+     * The root of the cone an element is part of, or -1 if it is not part of one
+     */
+    private final int[] rootOf;
+    /**
+     * Marks the elements of the cone being built, by the root of that cone
+     */
+    private final int[] mark;
+    /**
+     * Scratch space for the truth table word of every element
+     */
+    private final long[] values;
+
+    /**
+     * The cone of every element, or -1 if the element is not the root of a cone
+     */
+    final int[] cones;
+    /**
+     * Whether an element is absorbed into a cone and no longer evaluated
+     */
+    final long[] absorbed;
+    /**
+     * The inputs of every cone
+     */
+    int[] coneInputOffsets, coneInputs;
+    /**
+     * The truth table of every cone, as main input power of the root
+     */
+    long[][] coneTables;
+    /**
+     * The main output connections, redirected to the cone roots
+     */
+    int[] collapsedMainOffsets, collapsedMainTargets;
+
+    ConeCollapser(byte[] types, int[] delays, long[] disabled, int[] mainOffsets, int[] mainTargets, int[] sideOffsets, int[] sideTargets) {
+        this.size = types.length;
+        this.types = types;
+        this.delays = delays;
+        this.disabled = disabled;
+        this.mainOffsets = mainOffsets;
+        this.mainTargets = mainTargets;
+        this.sideOffsets = sideOffsets;
+        this.sideTargets = sideTargets;
+        this.inputOffsets = new int[this.size + 1];
+        this.inputSources = new int[mainTargets.length];
+        this.sideInput = new long[disabled.length];
+        this.rootOf = new int[this.size];
+        this.mark = new int[this.size];
+        this.values = new long[this.size];
+        this.cones = new int[this.size];
+        this.absorbed = new long[disabled.length];
+        Arrays.fill(this.rootOf, -1);
+        Arrays.fill(this.mark, -1);
+        Arrays.fill(this.cones, -1);
+
+        // Invert the main output connections
+        for (int target : mainTargets) {
+            this.inputOffsets[target + 1]++;
+        }
+        for (int i = 0; i < this.size; i++) {
+            this.inputOffsets[i + 1] += this.inputOffsets[i];
+        }
+        int[] fill = Arrays.copyOf(this.inputOffsets, this.size);
+        for (int i = 0; i < this.size; i++) {
+            for (int j = mainOffsets[i]; j < mainOffsets[i + 1]; j++) {
+                this.inputSources[fill[mainTargets[j]]++] = i;
+            }
+        }
+        for (int target : sideTargets) {
+            this.sideInput[target >>> 6] |= 1L << target;
+        }
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Finds and collapses all cones
+     */
+    void collapse() {
+        int[] inputOffsets = new int[this.size + 1];
+        IntList inputs = new IntList();
+        IntList members = new IntList();
+        IntList coneInputs = new IntList();
+        long[][] tables = new long[this.size][];
+        int coneCount = 0;
+
+        // Roots are elements that can not be absorbed themselves, leftovers of cones that grew too large come after
+        for (int pass = 0; pass < 2; pass++) {
+            for (int root = 0; root < this.size; root++) {
+                if (this.rootOf[root] != -1 || !this.isLogic(root) || (pass == 0 && this.isAbsorbable(root))) {
+                    continue;
+                }
+                members.clear();
+                coneInputs.clear();
+                if (!this.grow(root, members, coneInputs)) {
+                    continue;
+                }
+                for (int i = 0; i < members.size; i++) {
+                    this.rootOf[members.data[i]] = root;
+                    if (i > 0) {
+                        this.absorbed[members.data[i] >>> 6] |= 1L << members.data[i];
+                    }
+                }
+                this.cones[root] = coneCount;
+                tables[coneCount] = this.buildTable(members, coneInputs);
+                inputOffsets[coneCount] = inputs.size;
+                inputs.addAll(coneInputs);
+                coneCount++;
+            }
+        }
+        inputOffsets[coneCount] = inputs.size;
+        this.coneInputOffsets = Arrays.copyOf(inputOffsets, coneCount + 1);
+        this.coneInputs = inputs.toArray();
+        this.coneTables = Arrays.copyOf(tables, coneCount);
+        this.redirect();
+    }
+
+    /**
+     * Gets whether an element is a zero-delay wire or inverter
+     * 
+     * @param index the index of the element
+     * @return if the element is pure logic
+     */
+    private boolean isLogic(int index) {
+        byte type = this.types[index];
+        return (type == CircuitNetlist.TYPE_WIRE || type == CircuitNetlist.TYPE_INVERTER) && this.delays[index] == 0 && !get(this.disabled, index);
+    }
+
+    /**
+     * Gets whether an element can be absorbed into the cone of the single element it outputs to
+     * 
+     * @param index the index of the element
+     * @return if the element is absorbable
+     */
+    private boolean isAbsorbable(int index) {
+        if (!this.isLogic(index) || get(this.sideInput, index) || this.sideOffsets[index] != this.sideOffsets[index + 1]) {
+            return false;
+        }
+        if (this.mainOffsets[index + 1] - this.mainOffsets[index] != 1) {
+            return false;
+        }
+        int target = this.mainTargets[this.mainOffsets[index]];
+        return target != index && this.isLogic(target);
+    }
+
+    /**
+     * Grows the cone of a root by absorbing its inputs for as long as it stays within the input limit
+     * 
+     * @param root    the root of the cone
+     * @param members the list to fill with the elements of the cone, root first
+     * @param inputs  the list to fill with the inputs of the cone
+     * @return if the cone absorbed any element
+     */
+    private boolean grow(int root, IntList members, IntList inputs) {
+        if (this.inputOffsets[root + 1] - this.inputOffsets[root] > MAX_INPUTS) {
+            return false;
+        }
+        for (int j = this.inputOffsets[root]; j < this.inputOffsets[root + 1]; j++) {
+            if (this.inputSources[j] == root) {
+                // powers itself, keep the loop as it is
+                return false;
+            }
+        }
+        members.add(root);
+        this.mark[root] = root;
+        this.addInputs(root, root, inputs);
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (int i = 0; i < inputs.size; i++) {
+                int input = inputs.data[i];
+                if (this.rootOf[input] != -1 || !this.isAbsorbable(input)) {
+                    continue;
+                }
+                // count the new inputs, refusing to feed the cone back into itself
+                int added = 0;
+                boolean feedback = false;
+                for (int j = this.inputOffsets[input]; j < this.inputOffsets[input + 1]; j++) {
+                    int source = this.inputSources[j];
+                    if (this.mark[source] == root) {
+                        feedback |= !inputs.contains(source);
+                    } else {
+                        added++;
+                    }
+                }
+                if (feedback || inputs.size - 1 + added > MAX_INPUTS) {
+                    continue;
+                }
+                inputs.remove(i);
+                members.add(input);
+                this.addInputs(input, root, inputs);
+                grown = true;
+                break;
+            }
+        }
+        for (int i = 0; i < members.size; i++) {
+            this.mark[members.data[i]] = -1;
+        }
+        for (int i = 0; i < inputs.size; i++) {
+            this.mark[inputs.data[i]] = -1;
+        }
+        return members.size > 1;
+    }
+
+    private void addInputs(int index, int root, IntList inputs) {
+        for (int j = this.inputOffsets[index]; j < this.inputOffsets[index + 1]; j++) {
+            int source = this.inputSources[j];
+            if (this.mark[source] != root) {
+                this.mark[source] = root;
+                inputs.add(source);
+            }
+        }
+    }
+
+    /**
+     * Computes the main input power of the root of a cone for every combination of input states
+     * <p>
+     * 64 combinations are evaluated at once, one for every bit of a word.
+     * 
+     * @param members the elements of the cone, root first
+     * @param inputs  the inputs of the cone
+     * @return the truth table
+     */
+    private long[] buildTable(IntList members, IntList inputs) {
+        long[] table = new long[Math.max(1, (1 << inputs.size) >>> 6)];
+        for (int word = 0; word < table.length; word++) {
+            for (int i = 0; i < inputs.size; i++) {
+                if (i < INPUT_PATTERNS.length) {
+                    this.values[inputs.data[i]] = INPUT_PATTERNS[i];
+                } else {
+                    this.values[inputs.data[i]] = ((word >>> (i - INPUT_PATTERNS.length)) & 1) != 0 ? -1L : 0L;
+                }
+            }
+            // members are absorbed after the element they output to, so evaluate them in reverse
+            for (int i = members.size - 1; i >= 0; i--) {
+                int member = members.data[i];
+                long value = 0L;
+                for (int j = this.inputOffsets[member]; j < this.inputOffsets[member + 1]; j++) {
+                    value |= this.values[this.inputSources[j]];
+                }
+                if (i == 0) {
+                    table[word] = value;
+                } else {
+                    this.values[member] = this.types[member] == CircuitNetlist.TYPE_INVERTER ? ~value : value;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Redirects the main output connections to absorbed elements to the root of their cone
+     */
+    private void redirect() {
+        this.collapsedMainOffsets = new int[this.size + 1];
+        Arrays.fill(this.mark, -1);
+        IntList targets = new IntList();
+        for (int i = 0; i < this.size; i++) {
+            this.collapsedMainOffsets[i] = targets.size;
+            if (get(this.absorbed, i)) {
+                continue;
+            }
+            for (int j = this.mainOffsets[i]; j < this.mainOffsets[i + 1]; j++) {
+                int target = this.mainTargets[j];
+                if (get(this.absorbed, target)) {
+                    target = this.rootOf[target];
+                }
+                // several elements of a cone may share an input
+                if (this.mark[target] != i) {
+                    this.mark[target] = i;
+                    targets.add(target);
+                }
+            }
+        }
+        this.collapsedMainOffsets[this.size] = targets.size;
+        this.collapsedMainTargets = targets.toArray();
+    }
+
+    /**
+     * A growable list of element indices
+     */
+    private static final class IntList {
+        private int[] data = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (this.size == this.data.length) {
+                this.data = Arrays.copyOf(this.data, this.size << 1);
+            }
+            this.data[this.size++] = value;
+        }
+
+        void addAll(IntList list) {
+            for (int i = 0; i < list.size; i++) {
+                this.add(list.data[i]);
+            }
+        }
+
+        void remove(int index) {
+            System.arraycopy(this.data, index + 1, this.data, index, this.size - index - 1);
+            this.size--;
+        }
+
+        boolean contains(int value) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.data[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+    }
+}
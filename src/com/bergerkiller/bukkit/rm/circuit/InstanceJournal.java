@@ -0,0 +1,693 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.bergerkiller.bukkit.common.BlockLocation;
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+import com.bergerkiller.bukkit.rm.element.PhysicalPort;
+import com.bergerkiller.bukkit.rm.element.Port;
+
+/**
+ * An append-only journal of the changes made to circuit instances between saves
+ * <p>
+ * Port input changes, physical port changes and instance creation and removal are recorded on the main thread and
+ * committed once every tick as a single checksummed batch, which is written and synced on the background saver thread.
+ * Every batch has a sequence number, which keeps increasing across segments and restarts. A saved instance state is
+ * stamped with the sequence number of the last batch committed before it was taken, and at startup the journal is
+ * replayed on top of the saved instance states, skipping the batches a state already includes. Every save starts a new
+ * journal segment, older segments are deleted once the save is written.
+ * 
+ * @author bbayu123
+ *
+ */
+public class InstanceJournal {
+    private static final byte LEVER = 0;
+    private static final byte PORT_ADDED = 1;
+    private static final byte PORT_REMOVED = 2;
+    private static final byte INSTANCE_CREATED = 3;
+    private static final byte INSTANCE_REMOVED = 4;
+    /**
+     * The magic number at the start of every segment, "RMJ" followed by a zero byte
+     * <p>
+     * Segments written before it start with the first batch right away, and their batches have no sequence number.
+     */
+    private static final int MAGIC = 0x524D4A00;
+    /**
+     * The version of the segment layout
+     */
+    private static final int VERSION = 1;
+    /**
+     * The amount of sequence numbers reserved at once in the sequence file
+     */
+    private static final long RESERVE_COUNT = 65536;
+
+    /**
+     * The events recorded since the last commit
+     */
+    private static final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private static final DataOutputStream pendingStream = new DataOutputStream(pending);
+    /**
+     * Whether events are recorded, which is not the case while loading or replaying
+     */
+    private static boolean enabled = false;
+    /**
+     * The segment that events are currently committed to
+     */
+    private static int segment = 0;
+    /**
+     * The sequence number of the last committed or replayed batch
+     */
+    private static long sequence = 0;
+    /**
+     * The sequence number up to which numbers are reserved in the sequence file, so no number is used twice after a
+     * restart
+     */
+    private static long reserved = 0;
+    /**
+     * The names of the circuits of which the last save of some instances failed, the events of these circuits are kept
+     * until their instances are saved
+     */
+    private static final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The segment the channel is opened for, only used on the saver thread
+     */
+    private static int channelSegment = -1;
+    private static FileChannel channel = null;
+
+    public static File getFolder() {
+        File folder = new File(RedstoneMania.plugin.getDataFolder(), "journal");
+        folder.mkdirs();
+        return folder;
+    }
+
+    private static File getSegmentFile(int segment) {
+        return new File(getFolder(), segment + ".journal");
+    }
+
+    private static File getSequenceFile() {
+        return new File(getFolder(), "sequence");
+    }
+
+    /**
+     * Gets the numbers of the segments that exist, in ascending order
+     * 
+     * @return the segment numbers
+     */
+    private static int[] getSegments() {
+        String[] names = getFolder().list();
+        int[] segments = new int[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (names[i].endsWith(".journal")) {
+                try {
+                    segments[count++] = Integer.parseInt(names[i].substring(0, names[i].length() - 8));
+                } catch (NumberFormatException ex) {
+                    // not a segment
+                }
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Replays all journal segments on top of the loaded circuit instances
+     * <p>
+     * The batches an instance state already includes are skipped for that instance. Batches of segments written before
+     * batches had a sequence number are numbered from the start, below any number used since, so they are only replayed
+     * on top of states saved before as well.
+     * 
+     * @return the amount of events replayed
+     */
+    public static int replay() {
+        enabled = false;
+        reserved = Math.max(reserved, readReserved());
+        sequence = Math.max(sequence, reserved);
+        long[] legacySequence = new long[1];
+        int count = 0;
+        for (int segment : getSegments()) {
+            InstanceJournal.segment = segment;
+            count += replay(getSegmentFile(segment), legacySequence);
+        }
+        return count;
+    }
+
+    private static int replay(File file, long[] legacySequence) {
+        final int[] count = new int[1];
+        read(file, legacySequence, new BatchHandler() {
+            @Override
+            public void handle(long batchSequence, DataInputStream events) throws IOException {
+                sequence = Math.max(sequence, batchSequence);
+                while (events.available() > 0) {
+                    if (apply(Event.read(events), batchSequence)) {
+                        count[0]++;
+                    }
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Handles the batches of a segment that is read
+     */
+    private interface BatchHandler {
+        /**
+         * Handles a batch
+         * 
+         * @param batchSequence the sequence number of the batch
+         * @param events        the data stream to read the events of the batch from
+         * @throws IOException if there is a problem reading from the data stream
+         */
+        void handle(long batchSequence, DataInputStream events) throws IOException;
+    }
+
+    /**
+     * Reads the batches of a segment, until its end or a batch that is corrupt or was not completely written
+     * 
+     * @param file           the segment file
+     * @param legacySequence the sequence number of the last batch of the segments without sequence numbers read so far
+     * @param handler        the handler of the batches
+     */
+    private static void read(File file, long[] legacySequence, BatchHandler handler) {
+        try (InputStream input = new FileInputStream(file)) {
+            DataInputStream stream = new DataInputStream(input);
+            CRC32 crc = new CRC32();
+            int length;
+            boolean legacy;
+            try {
+                length = stream.readInt();
+                legacy = length != MAGIC;
+                if (!legacy) {
+                    if (stream.readInt() != VERSION) {
+                        RedstoneMania.plugin.log(Level.WARNING, "Journal '" + file.getName() + "' has an unknown version, its changes are lost");
+                        return;
+                    }
+                    length = stream.readInt();
+                }
+            } catch (EOFException ex) {
+                // an empty segment
+                return;
+            }
+            while (true) {
+                byte[] batch;
+                int checksum;
+                try {
+                    batch = new byte[length];
+                    checksum = stream.readInt();
+                    stream.readFully(batch);
+                } catch (EOFException ex) {
+                    // a batch that was not completely written
+                    break;
+                }
+                crc.reset();
+                crc.update(batch, 0, batch.length);
+                if ((int) crc.getValue() != checksum) {
+                    RedstoneMania.plugin.log(Level.WARNING, "Journal '" + file.getName() + "' has a corrupt entry, the changes after it are lost");
+                    break;
+                }
+                DataInputStream events = new DataInputStream(new ByteArrayInputStream(batch));
+                handler.handle(legacy ? ++legacySequence[0] : events.readLong(), events);
+                try {
+                    length = stream.readInt();
+                } catch (EOFException ex) {
+                    // end of the segment
+                    break;
+                }
+            }
+        } catch (Throwable t) {
+            RedstoneMania.plugin.log(Level.SEVERE, "An error occurred while reading journal '" + file.getName() + "':");
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a single event, unless the state of its instance already includes it
+     * 
+     * @param event         the event
+     * @param batchSequence the sequence number of the batch of the event
+     * @return if the event was applied
+     */
+    private static boolean apply(Event event, long batchSequence) {
+        Circuit c = CircuitProvider.get(event.circuitName);
+        CircuitInstance ci = c == null ? null : c.getInstance(event.instanceName);
+        if (ci != null && batchSequence <= ci.journalSequence) {
+            return false;
+        }
+        if (event.type == INSTANCE_CREATED) {
+            if (c != null && ci == null) {
+                ci = c.createInstance(event.instanceName);
+                if (ci != null) {
+                    ci.update();
+                }
+            }
+        } else if (event.type == INSTANCE_REMOVED) {
+            if (ci != null) {
+                c.removeInstance(event.instanceName);
+            }
+        } else {
+            Port port = ci == null ? null : ci.getPort(event.portName);
+            if (port == null) {
+                return true;
+            }
+            if (event.type == LEVER) {
+                if (port.isLeverPowered() != event.powered) {
+                    port.setLeverPowered(event.powered);
+                    port.onPowerChange();
+                }
+            } else {
+                PhysicalPort existing = null;
+                for (PhysicalPort pp : port.locations) {
+                    if (pp.position.equals(event.at)) {
+                        existing = pp;
+                        break;
+                    }
+                }
+                if (event.type == PORT_ADDED && existing == null) {
+                    port.addPhysical(event.at);
+                } else if (event.type == PORT_REMOVED && existing != null) {
+                    PhysicalPort.remove(existing);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts recording events, in a new segment after the replayed ones
+     */
+    public static void enable() {
+        segment++;
+        reserve();
+        enabled = true;
+    }
+
+    /**
+     * Gets whether events are being recorded
+     * 
+     * @return if the journal is enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the sequence number of the last batch, which a state taken now includes
+     * <p>
+     * The events recorded so far are committed first, so the events recorded after it are in later batches.
+     * 
+     * @return the sequence number
+     */
+    static long getSequence() {
+        commit();
+        return sequence;
+    }
+
+    private static CircuitInstance getInstance(Port port) {
+        if (enabled && port.getCircuit() instanceof CircuitInstance) {
+            CircuitInstance ci = (CircuitInstance) port.getCircuit();
+            if (ci.source != null && ci.source.isLoaded(ci)) {
+                return ci;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records an event
+     * 
+     * @param event the event
+     */
+    private static void record(Event event) {
+        try {
+            event.write(pendingStream);
+        } catch (IOException ex) {
+            // not thrown by an in-memory stream
+        }
+    }
+
+    /**
+     * Records that the lever input of a port changed
+     * 
+     * @param port    the port
+     * @param powered the new lever power state
+     */
+    public static void logLever(Port port, boolean powered) {
+        CircuitInstance ci = getInstance(port);
+        if (ci != null) {
+            Event event = new Event(LEVER, ci.source.name, ci.name);
+            event.portName = port.name;
+            event.powered = powered;
+            record(event);
+        }
+    }
+
+    /**
+     * Records that a physical port was added or removed
+     * 
+     * @param pp    the physical port
+     * @param added whether the physical port was added
+     */
+    public static void logPhysical(PhysicalPort pp, boolean added) {
+        CircuitInstance ci = getInstance(pp.port);
+        if (ci != null) {
+            Event event = new Event(added ? PORT_ADDED : PORT_REMOVED, ci.source.name, ci.name);
+            event.portName = pp.port.name;
+            event.at = pp.position;
+            record(event);
+        }
+    }
+
+    /**
+     * Records that an instance was created or removed
+     * 
+     * @param circuit      the circuit of the instance
+     * @param instanceName the name of the instance
+     * @param created      whether the instance was created
+     */
+    public static void logInstance(Circuit circuit, String instanceName, boolean created) {
+        if (enabled) {
+            record(new Event(created ? INSTANCE_CREATED : INSTANCE_REMOVED, circuit.name, instanceName));
+        }
+    }
+
+    /**
+     * Reserves the next block of sequence numbers, the sequence file is written before any batch that uses them
+     */
+    private static void reserve() {
+        reserved = sequence + RESERVE_COUNT;
+        final long value = reserved;
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeReserved(value);
+            }
+        });
+    }
+
+    /**
+     * Reads the sequence number up to which numbers were reserved
+     * 
+     * @return the sequence number, 0 if none were reserved
+     */
+    private static long readReserved() {
+        File file = getSequenceFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream stream = new DataInputStream(new FileInputStream(file))) {
+            return stream.readLong();
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to read the journal sequence: " + ex.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the sequence number up to which numbers are reserved and syncs it to disk, on the saver thread
+     * <p>
+     * It is written to a temporary file that replaces the sequence file, so a write that did not complete leaves the
+     * previous number.
+     * 
+     * @param value the sequence number
+     */
+    private static void writeReserved(long value) {
+        File temp = new File(getFolder(), "sequence.tmp");
+        try {
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                new DataOutputStream(output).writeLong(value);
+                output.getFD().sync();
+            }
+            Files.move(temp.toPath(), getSequenceFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to write the journal sequence: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Commits the events recorded since the last commit, they are written and synced on the background thread
+     */
+    public static void commit() {
+        if (pending.size() == 0) {
+            return;
+        }
+        sequence++;
+        if (sequence > reserved) {
+            reserve();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + pending.size());
+        buffer.putLong(sequence).put(pending.toByteArray());
+        final byte[] batch = buffer.array();
+        final int segment = InstanceJournal.segment;
+        pending.reset();
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                append(segment, batch);
+            }
+        });
+    }
+
+    /**
+     * Appends a batch of events to a segment and syncs it to disk, on the saver thread
+     * 
+     * @param segment the segment to append to
+     * @param batch   the sequence number and events of the batch
+     */
+    private static void append(int segment, byte[] batch) {
+        try {
+            if (channelSegment != segment) {
+                closeChannel();
+                channel = new FileOutputStream(getSegmentFile(segment), true).getChannel();
+                channelSegment = segment;
+                if (channel.size() == 0) {
+                    write(channel, ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION));
+                }
+            }
+            write(channel, frame(batch));
+            channel.force(false);
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to write the journal: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Frames a batch with its length and checksum
+     * 
+     * @param batch the sequence number and events of the batch
+     * @return the framed batch
+     */
+    private static ByteBuffer frame(byte[] batch) {
+        CRC32 crc = new CRC32();
+        crc.update(batch, 0, batch.length);
+        return ByteBuffer.allocate(batch.length + 8).putInt(batch.length).putInt((int) crc.getValue()).put(batch);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                RedstoneMania.plugin.log(Level.WARNING, "Failed to close the journal: " + ex.getMessage());
+            }
+            channel = null;
+            channelSegment = -1;
+        }
+    }
+
+    /**
+     * Marks that a save of instances of a circuit failed, so the events of the circuit are kept until they are saved
+     * 
+     * @param circuit the circuit
+     */
+    static void onSaveFailed(Circuit circuit) {
+        failed.add(circuit.name);
+    }
+
+    /**
+     * Marks that all instances of a circuit of which a save failed have been saved since
+     * 
+     * @param circuit the circuit
+     */
+    static void onSaved(Circuit circuit) {
+        failed.remove(circuit.name);
+    }
+
+    /**
+     * Starts a new segment after the instances have been saved
+     * <p>
+     * Must be called after the saves are submitted. Once they are written, the older segments are deleted. If saves of
+     * some circuits failed, the older segments are rewritten with only the events of these circuits instead.
+     */
+    public static void checkpoint() {
+        commit();
+        final int last = segment;
+        segment++;
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (channelSegment <= last) {
+                    closeChannel();
+                }
+                for (int segment : getSegments()) {
+                    if (segment > last) {
+                        continue;
+                    }
+                    if (failed.isEmpty()) {
+                        getSegmentFile(segment).delete();
+                    } else {
+                        retain(segment, failed);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites a segment with only the events of some circuits, on the saver thread
+     * <p>
+     * The segment is replaced once the rewritten segment is synced to disk. It is deleted if no events are left.
+     * 
+     * @param segment      the segment
+     * @param circuitNames the names of the circuits to keep the events of
+     */
+    private static void retain(int segment, final Set<String> circuitNames) {
+        File file = getSegmentFile(segment);
+        final List<byte[]> batches = new ArrayList<>();
+        // segments without sequence numbers are only left by a previous version, the ones kept since are rewritten
+        read(file, new long[1], new BatchHandler() {
+            @Override
+            public void handle(long batchSequence, DataInputStream events) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream kept = new DataOutputStream(bytes);
+                kept.writeLong(batchSequence);
+                while (events.available() > 0) {
+                    Event event = Event.read(events);
+                    if (circuitNames.contains(event.circuitName)) {
+                        event.write(kept);
+                    }
+                }
+                if (bytes.size() > 8) {
+                    batches.add(bytes.toByteArray());
+                }
+            }
+        });
+        if (batches.isEmpty()) {
+            file.delete();
+            return;
+        }
+        File temp = new File(getFolder(), segment + ".tmp");
+        try {
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                FileChannel rewritten = output.getChannel();
+                write(rewritten, ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION));
+                for (byte[] batch : batches) {
+                    write(rewritten, frame(batch));
+                }
+                rewritten.force(false);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.WARNING, "Failed to rewrite journal '" + file.getName() + "', it is kept as it was: " + ex.getMessage());
+            temp.delete();
+        }
+    }
+
+    /**
+     * Stops recording events, the pending events are committed and the journal is closed by the saver thread
+     */
+    public static void disable() {
+        commit();
+        enabled = false;
+        InstanceSaver.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * A single recorded change to a circuit instance
+     */
+    private static final class Event {
+        final byte type;
+        final String circuitName;
+        final String instanceName;
+        /**
+         * The name of the port, for lever and physical port events
+         */
+        String portName = null;
+        /**
+         * The new lever power state, for lever events
+         */
+        boolean powered = false;
+        /**
+         * The location of the physical port, for physical port events
+         */
+        BlockLocation at = null;
+
+        Event(byte type, String circuitName, String instanceName) {
+            this.type = type;
+            this.circuitName = circuitName;
+            this.instanceName = instanceName;
+        }
+
+        static Event read(DataInputStream stream) throws IOException {
+            Event event = new Event(stream.readByte(), stream.readUTF(), stream.readUTF());
+            if (event.type == LEVER) {
+                event.portName = stream.readUTF();
+                event.powered = stream.readBoolean();
+            } else if (event.type == PORT_ADDED || event.type == PORT_REMOVED) {
+                event.portName = stream.readUTF();
+                event.at = new BlockLocation(stream.readUTF(), stream.readInt(), stream.readInt(), stream.readInt());
+            }
+            return event;
+        }
+
+        void write(DataOutputStream stream) throws IOException {
+            stream.writeByte(this.type);
+            stream.writeUTF(this.circuitName);
+            stream.writeUTF(this.instanceName);
+            if (this.type == LEVER) {
+                stream.writeUTF(this.portName);
+                stream.writeBoolean(this.powered);
+            } else if (this.type == PORT_ADDED || this.type == PORT_REMOVED) {
+                stream.writeUTF(this.portName);
+                stream.writeUTF(this.at.world);
+                stream.writeInt(this.at.x);
+                stream.writeInt(this.at.y);
+                stream.writeInt(this.at.z);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bergerkiller.bukkit.rm.element.Component;
+import com.bergerkiller.bukkit.rm.element.PhysicalPort;
+import com.bergerkiller.bukkit.rm.element.Port;
+
+/**
+ * Moves the state of circuit instances from a previous definition of a circuit onto a new one
+ * <p>
+ * Ports are matched by name and the other elements of the circuit itself by type and position, so the instances keep
+ * their state when the circuit is built again with different element IDs. The elements of sub-circuits are matched by
+ * their offset from the first sub-circuit element, if they are of the same type. The stored power and pending delay
+ * state of every matched element is carried over, elements without a match start with their initial state.
+ * 
+ * @author bbayu123
+ *
+ */
+final class InstanceMigration {
+    /**
+     * The netlist of the new definition
+     */
+    private final CircuitNetlist netlist;
+    /**
+     * The index of the element of the previous definition that every element of the new one is matched with, or -1
+     */
+    private final int[] sources;
+
+    /**
+     * Matches the elements of two definitions of a circuit
+     * 
+     * @param from the previous definition, which must be compiled
+     * @param to   the new definition, which must be compiled
+     */
+    InstanceMigration(Circuit from, Circuit to) {
+        CircuitNetlist previous = from.getNetlist();
+        this.netlist = to.getNetlist();
+        this.sources = new int[this.netlist.size()];
+        Arrays.fill(this.sources, -1);
+        boolean[] matched = new boolean[previous.size()];
+        Map<String, Integer> previousPorts = getPortIds(from);
+        for (Map.Entry<String, Integer> port : getPortIds(to).entrySet()) {
+            Integer source = previousPorts.get(port.getKey());
+            if (source != null) {
+                this.sources[port.getValue()] = source.intValue();
+                matched[source.intValue()] = true;
+            }
+        }
+
+        // The elements of the circuit itself by type and position
+        Component[] previousElements = from.getPrototypeElements();
+        Map<Long, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < from.getMainElementCount(); i++) {
+            if (!matched[i]) {
+                Long key = getPositionKey(previousElements[i]);
+                List<Integer> ids = positions.get(key);
+                if (ids == null) {
+                    ids = new ArrayList<>(1);
+                    positions.put(key, ids);
+                }
+                ids.add(i);
+            }
+        }
+        Component[] elements = to.getPrototypeElements();
+        for (int i = 0; i < to.getMainElementCount(); i++) {
+            if (this.sources[i] == -1) {
+                List<Integer> ids = positions.get(getPositionKey(elements[i]));
+                if (ids != null && !ids.isEmpty()) {
+                    this.sources[i] = ids.remove(0);
+                    matched[this.sources[i]] = true;
+                }
+            }
+        }
+
+        // The elements of the sub-circuits, which follow the elements of the circuit itself, by their offset
+        for (int i = to.getMainElementCount(); i < this.sources.length; i++) {
+            int source = i - to.getMainElementCount() + from.getMainElementCount();
+            if (source < matched.length && !matched[source] && previous.getType(source) == this.netlist.getType(i)) {
+                this.sources[i] = source;
+                matched[source] = true;
+            }
+        }
+    }
+
+    private static Long getPositionKey(Component element) {
+        return ((long) element.getType() << 32) | ((element.getX() & 0xFFFFL) << 16) | (element.getZ() & 0xFFFFL);
+    }
+
+    /**
+     * Gets the IDs of the ports of a compiled circuit, by port name
+     * 
+     * @param circuit the circuit
+     * @return the port IDs
+     */
+    private static Map<String, Integer> getPortIds(Circuit circuit) {
+        Map<String, Integer> ids = new HashMap<>();
+        Component[] elements = circuit.getPrototypeElements();
+        for (int i = 0; i < circuit.getMainElementCount(); i++) {
+            if (elements[i] instanceof Port) {
+                ids.put(((Port) elements[i]).name, i);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Moves the state and physical ports of an instance onto an instance of the new definition
+     * <p>
+     * The physical ports of ports that no longer exist are dropped. The previous instance is stopped.
+     * 
+     * @param from the instance of the previous definition
+     * @param to   the instance of the new definition, which is not added to its circuit yet
+     * @return the amount of physical ports that were dropped
+     */
+    int migrate(CircuitInstance from, CircuitInstance to) {
+        int dropped = 0;
+        for (Port port : from.getPorts()) {
+            Port target = to.getPort(port.name);
+            for (PhysicalPort pp : new ArrayList<>(port.locations)) {
+                PhysicalPort.unload(pp);
+                if (target == null) {
+                    dropped++;
+                } else {
+                    target.addPhysical(pp.position).setLeverPowered(pp.isLeverPowered());
+                }
+            }
+            if (target != null) {
+                target.setLeverPowered(port.isLeverPowered());
+            }
+        }
+        NetlistEvaluator evaluator = to.getEvaluator();
+        if (from.getEvaluator() != null) {
+            InstanceSnapshot snapshot = new InstanceSnapshot(from);
+            for (int i = 0; i < this.sources.length; i++) {
+                int source = this.sources[i];
+                if (source != -1) {
+                    int setdelay = this.netlist.getDelay(i) > 0 ? snapshot.getRemainingDelay(source) : 0;
+                    evaluator.setState(i, snapshot.getPoweredState(source), setdelay, snapshot.getDelayedMainPowered(source));
+                }
+            }
+            evaluator.restoreInputs();
+            from.getEvaluator().sleep();
+        }
+        to.setDirty();
+        return dropped;
+    }
+}
@@ -0,0 +1,92 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+
+/**
+ * Writes circuit instances on a background thread
+ * <p>
+ * Tasks run one at a time in the order they are submitted, so a store is never written by two tasks at once and is
+ * closed only after the writes before it.
+ * 
+ * @author bbayu123
+ *
+ */
+public class InstanceSaver {
+    /**
+     * The executor running the tasks, or null if it is not started
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * Submits a task to run on the background thread
+     * 
+     * @param task the task to run
+     */
+    static synchronized void submit(final Runnable task) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RedstoneMania instance saver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    RedstoneMania.plugin.log(Level.SEVERE, "An error occurred while saving circuit instances:");
+                    t.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all tasks submitted so far have run
+     */
+    public static void flush() {
+        Future<?> barrier;
+        synchronized (InstanceSaver.class) {
+            if (executor == null) {
+                return;
+            }
+            barrier = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        try {
+            barrier.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            // the barrier itself does nothing
+        }
+    }
+
+    /**
+     * Waits until all submitted tasks have run and stops the background thread
+     */
+    public static void shutdown() {
+        flush();
+        synchronized (InstanceSaver.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import com.bergerkiller.bukkit.common.BlockLocation;
+import com.bergerkiller.bukkit.rm.element.PhysicalPort;
+import com.bergerkiller.bukkit.rm.element.Port;
+
+/**
+ * A copy of the state of a circuit instance, taken on the main thread so it can be written on another thread
+ * <p>
+ * Taking a snapshot only copies the state arrays of the evaluator and the physical port locations, all encoding is
+ * left to the thread that writes it.
+ * 
+ * @author bbayu123
+ *
+ */
+final class InstanceSnapshot {
+    /**
+     * The name of the instance
+     */
+    final String name;
+    /**
+     * The tick at which the snapshot was taken
+     */
+    final int tick;
+    /**
+     * The sequence number of the last journal batch the snapshot includes
+     */
+    final long journalSequence;
+    /**
+     * The stored power state of every element
+     */
+    long[] powered;
+    /**
+     * Whether a delayed power state is waiting to be set
+     */
+    long[] delayPending;
+    /**
+     * The main power state to set after the current delay
+     */
+    long[] setMainPowered;
+    /**
+     * The tick at which the current delay of an element expires
+     */
+    int[] delayTick;
+    /**
+     * The names of the ports
+     */
+    private final String[] portNames;
+    /**
+     * The physical locations of every port
+     */
+    private final BlockLocation[][] portLocations;
+    /**
+     * The lever state of every physical port location
+     */
+    private final boolean[][] portLevers;
+
+    /**
+     * Takes a snapshot of an instance
+     * 
+     * @param ci the instance, which must have an evaluator
+     */
+    InstanceSnapshot(CircuitInstance ci) {
+        this.name = ci.name;
+        this.tick = TimingWheel.getCurrentTick();
+        this.journalSequence = InstanceJournal.getSequence();
+        ci.getEvaluator().capture(this);
+        Collection<Port> ports = ci.getPorts();
+        this.portNames = new String[ports.size()];
+        this.portLocations = new BlockLocation[ports.size()][];
+        this.portLevers = new boolean[ports.size()][];
+        int i = 0;
+        for (Port port : ports) {
+            this.portNames[i] = port.name;
+            this.portLocations[i] = new BlockLocation[port.locations.size()];
+            this.portLevers[i] = new boolean[port.locations.size()];
+            int j = 0;
+            for (PhysicalPort pp : port.locations) {
+                this.portLocations[i][j] = pp.position;
+                this.portLevers[i][j] = pp.isLeverPowered();
+                j++;
+            }
+            i++;
+        }
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Gets the power state stored for an element, excluding lever power
+     * 
+     * @param index the index of the element
+     * @return the stored power state
+     */
+    boolean getPoweredState(int index) {
+        return get(this.powered, index);
+    }
+
+    /**
+     * Gets the amount of ticks that were left until the current delay of an element expires
+     * 
+     * @param index the index of the element
+     * @return the remaining delay, or 0 if no delay is pending
+     */
+    int getRemainingDelay(int index) {
+        if (!get(this.delayPending, index)) {
+            return 0;
+        }
+        return Math.max(1, this.delayTick[index] - this.tick);
+    }
+
+    /**
+     * Gets the main power state that is set once the current delay of an element expires
+     * 
+     * @param index the index of the element
+     * @return the delayed main power state
+     */
+    boolean getDelayedMainPowered(int index) {
+        return get(this.setMainPowered, index);
+    }
+
+    /**
+     * Saves the physical port locations, by port name, in the layout of {@link Port#savePhysical(DataOutputStream)}
+     * 
+     * @param stream the data stream to write to
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    void savePorts(DataOutputStream stream) throws IOException {
+        stream.writeShort(this.portNames.length);
+        for (int i = 0; i < this.portNames.length; i++) {
+            stream.writeUTF(this.portNames[i]);
+            stream.writeShort(this.portLocations[i].length);
+            for (int j = 0; j < this.portLocations[i].length; j++) {
+                BlockLocation position = this.portLocations[i][j];
+                stream.writeUTF(position.world);
+                stream.writeInt(position.x);
+                stream.writeByte(position.y);
+                stream.writeInt(position.z);
+                stream.writeBoolean(this.portLevers[i][j]);
+            }
+        }
+    }
+}
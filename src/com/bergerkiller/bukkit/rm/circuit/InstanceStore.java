@@ -0,0 +1,781 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.common.BlockLocation;
+import com.bergerkiller.bukkit.common.config.DataReader;
+import com.bergerkiller.bukkit.common.config.DataWriter;
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+import com.bergerkiller.bukkit.rm.element.Port;
+
+/**
+ * Stores the state of all instances of a single circuit in one memory-mapped file
+ * <p>
+ * Every instance has a fixed-size record in the state file, holding a bit set of the power state of all elements and
+ * the pending delays of the delayed elements, in counters just large enough for the longest delay of the netlist.
+ * Saving an instance writes its record in place. The first byte of a record tells whether it holds a state, cleared
+ * records are not loaded, followed by the sequence number of the last {@link InstanceJournal} batch the state includes.
+ * The index file maps instance names to their record and stores the physical port locations,
+ * which are of variable size and change rarely, with the world names in a table of the file. The state file is bound
+ * to the netlist it was written for by a SHA-256 digest of the netlist, the records are cleared when it is opened for
+ * a different netlist.
+ * <p>
+ * Records are written from snapshots, so saving can happen on another thread. The methods of a store are synchronized.
+ * 
+ * @author bbayu123
+ *
+ */
+public class InstanceStore {
+    /**
+     * The magic number at the start of the state file, "RMI" followed by a zero byte
+     */
+    private static final int MAGIC = 0x524D4900;
+    /**
+     * The version of the state file layout
+     */
+    private static final int VERSION = 5;
+    /**
+     * The magic number at the start of the index file, "RMX" followed by a zero byte
+     * <p>
+     * Index files written before it start with the instance count right away.
+     */
+    private static final int INDEX_MAGIC = 0x524D5800;
+    /**
+     * The size of the state file header: magic, version, netlist hash, record size and netlist digest
+     */
+    private static final int HEADER_SIZE = 48;
+    /**
+     * The size of the state file header of the versions that did not store the netlist digest
+     */
+    private static final int LEGACY_HEADER_SIZE = 16;
+    /**
+     * The initial amount of records the state file has room for
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * The size of the start of a record: the valid byte and the sequence number of the last journal batch
+     */
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    /**
+     * The netlist of the stored instances
+     */
+    private final CircuitNetlist netlist;
+    /**
+     * The state file
+     */
+    private final File stateFile;
+    /**
+     * The index file
+     */
+    private final File indexFile;
+    /**
+     * The indices of the elements with a delay, in netlist order
+     */
+    private final int[] delayed;
+    /**
+     * The size of the bit set of the power state of all elements in a record, in bytes
+     */
+    private final int bitBytes;
+    /**
+     * The size of the bit set of the delayed main power state of the delayed elements in a record, in bytes
+     */
+    private final int delayedBytes;
+    /**
+     * The size of a delay counter in a record, which fits the longest delay of the netlist, in bytes
+     */
+    private final int counterSize;
+    /**
+     * The size of a single record including its valid byte and journal sequence number, in bytes
+     */
+    private final int recordSize;
+    /**
+     * The record slot of every instance, by instance name
+     */
+    private final Map<String, Integer> slots = new LinkedHashMap<>();
+    /**
+     * The record slots that are in use
+     */
+    private final BitSet used = new BitSet();
+    /**
+     * The physical port locations of every instance as stored in the index, by instance name
+     */
+    private final Map<String, byte[]> portData = new HashMap<>();
+    /**
+     * The SHA-256 digest of the netlist, computed once the state file is first opened
+     */
+    private byte[] digest = null;
+    /**
+     * Whether the index has been read
+     */
+    private boolean indexed = false;
+    /**
+     * Whether instances were removed since the index was last written
+     */
+    private boolean removed = false;
+    private RandomAccessFile file = null;
+    private MappedByteBuffer buffer = null;
+    /**
+     * The amount of records the mapped buffer has room for
+     */
+    private int capacity = 0;
+
+    /**
+     * Creates a new instance store
+     * 
+     * @param netlist the netlist of the stored instances
+     * @param folder  the folder to store the state and index files in
+     */
+    public InstanceStore(CircuitNetlist netlist, File folder) {
+        this.netlist = netlist;
+        this.stateFile = new File(folder, "instances.state");
+        this.indexFile = new File(folder, "instances.index");
+        int delayedCount = 0;
+        for (int i = 0; i < netlist.size(); i++) {
+            if (netlist.getDelay(i) > 0) {
+                delayedCount++;
+            }
+        }
+        this.delayed = new int[delayedCount];
+        delayedCount = 0;
+        int maxDelay = 0;
+        for (int i = 0; i < netlist.size(); i++) {
+            if (netlist.getDelay(i) > 0) {
+                this.delayed[delayedCount++] = i;
+                maxDelay = Math.max(maxDelay, netlist.getDelay(i));
+            }
+        }
+        this.bitBytes = (netlist.size() + 7) >>> 3;
+        this.delayedBytes = (delayedCount + 7) >>> 3;
+        this.counterSize = maxDelay <= 0xFF ? 1 : maxDelay <= 0xFFFF ? 2 : 4;
+        this.recordSize = RECORD_HEADER_SIZE + this.bitBytes + this.delayedBytes + this.counterSize * delayedCount;
+    }
+
+    /**
+     * Opens the state file and reads the index, if not already done
+     * 
+     * @return the names of the stored instances, in the order they were stored
+     * @throws IOException if the state file could not be opened
+     */
+    public synchronized List<String> open() throws IOException {
+        this.mapFile();
+        this.readIndex();
+        return new ArrayList<>(this.slots.keySet());
+    }
+
+    /**
+     * Gets whether the state file is opened
+     * 
+     * @return if the store is open
+     */
+    public synchronized boolean isOpen() {
+        return this.file != null;
+    }
+
+    /**
+     * Opens and maps the state file, if not already opened
+     * 
+     * @throws IOException if the state file could not be opened
+     */
+    private void mapFile() throws IOException {
+        if (this.file != null) {
+            return;
+        }
+        if (this.digest == null) {
+            this.digest = this.netlist.computeDigest();
+        }
+        this.file = new RandomAccessFile(this.stateFile, "rw");
+        long length = this.file.length();
+        if (length >= LEGACY_HEADER_SIZE) {
+            this.map((int) (Math.max(0L, length - HEADER_SIZE) / this.recordSize));
+            int version = this.buffer.getInt(4);
+            int storedRecordSize = this.buffer.getInt(12);
+            boolean magic = this.buffer.getInt(0) == MAGIC;
+            if (magic && version == VERSION && storedRecordSize == this.recordSize && this.hasDigest()) {
+                return;
+            }
+            boolean legacy = version >= 1 && version < VERSION && storedRecordSize == this.getRecordSize(version);
+            if (magic && legacy && version == 4 && this.hasDigest()) {
+                this.convert(version, (int) ((length - HEADER_SIZE) / storedRecordSize), storedRecordSize, HEADER_SIZE);
+            } else if (magic && legacy && version < 4 && this.buffer.getInt(8) == this.netlist.hashCode()) {
+                // Versions without the digest can only be matched by the hash of the netlist
+                this.convert(version, (int) ((length - LEGACY_HEADER_SIZE) / storedRecordSize), storedRecordSize, LEGACY_HEADER_SIZE);
+            } else {
+                RedstoneMania.plugin.log(Level.WARNING, "Instance states in '" + this.stateFile + "' do not match the circuit, they are reset");
+                this.clearRecords(0, this.capacity);
+            }
+        } else {
+            this.map(INITIAL_CAPACITY);
+        }
+        this.writeHeader();
+    }
+
+    /**
+     * Gets whether the header of the state file holds the digest of the netlist
+     * 
+     * @return if the digest matches
+     */
+    private boolean hasDigest() {
+        for (int i = 0; i < this.digest.length; i++) {
+            if (this.buffer.get(LEGACY_HEADER_SIZE + i) != this.digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the size of a record in a previous version of the state file
+     * 
+     * @param version the version of the state file
+     * @return the size of a record, in bytes
+     */
+    private int getRecordSize(int version) {
+        if (version == 1) {
+            // a bit for the delayed main power state of every element and an int for every delay counter
+            return 2 * this.bitBytes + 4 * this.delayed.length;
+        } else if (version == 2) {
+            // the same layout without the valid byte and journal sequence number
+            return this.recordSize - RECORD_HEADER_SIZE;
+        } else {
+            // the same layout without the journal sequence number
+            return this.recordSize - 8;
+        }
+    }
+
+    /**
+     * Converts the records of a state file written by a previous version
+     * <p>
+     * Versions 1 and 2 did not mark which records hold a state, so all converted records are taken to hold one, as
+     * those versions did. No converted record includes a journal batch, so the journal is replayed on top of all of
+     * them, as those versions did.
+     * 
+     * @param version          the version of the state file
+     * @param legacyCapacity   the amount of records in the file
+     * @param legacyRecordSize the size of a record in the file
+     * @param legacyHeaderSize the size of the header of the file
+     * @throws IOException if the records could not be read
+     */
+    private void convert(int version, int legacyCapacity, int legacyRecordSize, int legacyHeaderSize) throws IOException {
+        long legacySize = (long) legacyCapacity * legacyRecordSize;
+        if (legacySize > Integer.MAX_VALUE) {
+            throw new IOException("The instance states are too large to convert");
+        }
+        byte[] records = new byte[(int) legacySize];
+        this.file.seek(legacyHeaderSize);
+        this.file.readFully(records);
+        // The records are rewritten in place, a conversion that did not complete must not be read as valid
+        this.buffer.putInt(0, 0);
+        this.buffer.force();
+        if (legacyCapacity > this.capacity) {
+            this.map(legacyCapacity);
+        }
+        ByteBuffer legacy = ByteBuffer.wrap(records);
+        for (int slot = 0; slot < legacyCapacity; slot++) {
+            int legacyBase = slot * legacyRecordSize;
+            int base = this.getPosition(slot);
+            this.buffer.putLong(base + 1, 0L);
+            if (version >= 3) {
+                this.buffer.put(base, legacy.get(legacyBase));
+                for (int b = 1; b < legacyRecordSize; b++) {
+                    this.buffer.put(base + 8 + b, legacy.get(legacyBase + b));
+                }
+                continue;
+            }
+            this.buffer.put(base, (byte) 1);
+            for (int b = 0; b < this.bitBytes; b++) {
+                this.buffer.put(base + RECORD_HEADER_SIZE + b, legacy.get(legacyBase + b));
+            }
+            for (int d = 0; d < this.delayed.length; d++) {
+                int setdelay;
+                boolean setMainPowered;
+                if (version == 1) {
+                    int i = this.delayed[d];
+                    setdelay = legacy.getInt(legacyBase + 2 * this.bitBytes + 4 * d);
+                    setMainPowered = (legacy.get(legacyBase + this.bitBytes + (i >>> 3)) & (1 << (i & 7))) != 0;
+                } else {
+                    setdelay = this.getCounter(legacy, legacyBase + this.bitBytes + this.delayedBytes + this.counterSize * d);
+                    setMainPowered = (legacy.get(legacyBase + this.bitBytes + (d >>> 3)) & (1 << (d & 7))) != 0;
+                }
+                this.putDelay(base, d, setdelay, setMainPowered);
+            }
+        }
+        this.clearRecords(legacyCapacity, this.capacity);
+    }
+
+    /**
+     * Reads the record slots of the instances from the index, if not already read
+     */
+    private void readIndex() {
+        if (this.indexed) {
+            return;
+        }
+        this.indexed = true;
+        if (!this.indexFile.exists()) {
+            return;
+        }
+        new DataReader(this.indexFile) {
+            @Override
+            public void read(DataInputStream stream) throws IOException {
+                int count = stream.readInt();
+                if (count == INDEX_MAGIC) {
+                    String[] worlds = new String[CircuitFormat.readVarInt(stream)];
+                    for (int i = 0; i < worlds.length; i++) {
+                        worlds[i] = stream.readUTF();
+                    }
+                    count = CircuitFormat.readVarInt(stream);
+                    for (int i = 0; i < count; i++) {
+                        String name = stream.readUTF();
+                        int slot = CircuitFormat.readVarInt(stream);
+                        InstanceStore.this.slots.put(name, slot);
+                        InstanceStore.this.used.set(slot);
+                        InstanceStore.this.portData.put(name, readCompactPorts(stream, worlds));
+                    }
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    String name = stream.readUTF();
+                    int slot = stream.readInt();
+                    InstanceStore.this.slots.put(name, slot);
+                    InstanceStore.this.used.set(slot);
+                    // the ports are read once the instance exists
+                    InstanceStore.this.portData.put(name, readPorts(stream));
+                }
+            }
+        }.read();
+    }
+
+    /**
+     * Reads the physical port locations of an instance from the index, without interpreting them
+     * 
+     * @param stream the data stream to read from
+     * @return the port data
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    private static byte[] readPorts(DataInputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        int portCount = stream.readShort();
+        data.writeShort(portCount);
+        for (int i = 0; i < portCount; i++) {
+            data.writeUTF(stream.readUTF());
+            int loccount = stream.readShort();
+            data.writeShort(loccount);
+            for (int j = 0; j < loccount; j++) {
+                data.writeUTF(stream.readUTF());
+                data.writeInt(stream.readInt());
+                data.writeByte(stream.readByte());
+                data.writeInt(stream.readInt());
+                data.writeBoolean(stream.readBoolean());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the physical port locations of an instance from the index in the compact layout, into the layout of
+     * {@link Port#savePhysical(DataOutputStream)}
+     * 
+     * @param stream the data stream to read from
+     * @param worlds the world names of the index
+     * @return the port data
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    private static byte[] readCompactPorts(DataInputStream stream, String[] worlds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        int portCount = CircuitFormat.readVarInt(stream);
+        data.writeShort(portCount);
+        for (int i = 0; i < portCount; i++) {
+            data.writeUTF(stream.readUTF());
+            int loccount = CircuitFormat.readVarInt(stream);
+            data.writeShort(loccount);
+            for (int j = 0; j < loccount; j++) {
+                // the lowest bit of the world index is the lever state
+                int world = CircuitFormat.readVarInt(stream);
+                int x = CircuitFormat.readVarInt(stream);
+                byte y = stream.readByte();
+                int z = CircuitFormat.readVarInt(stream);
+                data.writeUTF(worlds[world >>> 1]);
+                data.writeInt((x >>> 1) ^ -(x & 1));
+                data.writeByte(y);
+                data.writeInt((z >>> 1) ^ -(z & 1));
+                data.writeBoolean((world & 1) != 0);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the physical port locations of an instance to the index in the compact layout
+     * 
+     * @param stream the data stream to write to
+     * @param data   the port data, in the layout of {@link Port#savePhysical(DataOutputStream)}
+     * @param worlds the indices of the world names of the index, world names that are not in it yet are added
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    private static void writeCompactPorts(DataOutputStream stream, byte[] data, Map<String, Integer> worlds) throws IOException {
+        DataInputStream ports = new DataInputStream(new ByteArrayInputStream(data));
+        int portCount = ports.readShort();
+        CircuitFormat.writeVarInt(stream, portCount);
+        for (int i = 0; i < portCount; i++) {
+            stream.writeUTF(ports.readUTF());
+            int loccount = ports.readShort();
+            CircuitFormat.writeVarInt(stream, loccount);
+            for (int j = 0; j < loccount; j++) {
+                String worldName = ports.readUTF();
+                int x = ports.readInt();
+                byte y = ports.readByte();
+                int z = ports.readInt();
+                boolean lever = ports.readBoolean();
+                Integer world = worlds.get(worldName);
+                if (world == null) {
+                    world = worlds.size();
+                    worlds.put(worldName, world);
+                }
+                CircuitFormat.writeVarInt(stream, (world << 1) | (lever ? 1 : 0));
+                CircuitFormat.writeVarInt(stream, (x << 1) ^ (x >> 31));
+                stream.writeByte(y);
+                CircuitFormat.writeVarInt(stream, (z << 1) ^ (z >> 31));
+            }
+        }
+    }
+
+    /**
+     * Maps the state file with room for a certain amount of records
+     * 
+     * @param capacity the amount of records
+     * @throws IOException if the state file could not be mapped
+     */
+    private void map(int capacity) throws IOException {
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+        long size = HEADER_SIZE + (long) capacity * this.recordSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The instance states do not fit in a single mapped file");
+        }
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the position of a record in the state file
+     * <p>
+     * The mapped size of the state file never exceeds the range of an int, so neither does the position of a record
+     * within it.
+     * 
+     * @param slot the record slot
+     * @return the position
+     */
+    private int getPosition(int slot) {
+        return (int) (HEADER_SIZE + (long) slot * this.recordSize);
+    }
+
+    /**
+     * Writes the header of the state file, once the records all match it
+     * <p>
+     * The records are flushed to disk first, so a header is never found on disk in front of records it does not
+     * describe.
+     */
+    private void writeHeader() {
+        this.buffer.force();
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, VERSION);
+        this.buffer.putInt(8, this.netlist.hashCode());
+        this.buffer.putInt(12, this.recordSize);
+        for (int i = 0; i < this.digest.length; i++) {
+            this.buffer.put(LEGACY_HEADER_SIZE + i, this.digest[i]);
+        }
+        this.buffer.force();
+    }
+
+    /**
+     * Clears records, so they no longer hold the state of any instance
+     * 
+     * @param from the first record slot to clear
+     * @param to   the record slot after the last one to clear
+     */
+    private void clearRecords(int from, int to) {
+        for (int position = this.getPosition(from); position < this.getPosition(to); position++) {
+            this.buffer.put(position, (byte) 0);
+        }
+    }
+
+    /**
+     * Gets the physical port locations of a stored instance, without loading the instance
+     * 
+     * @param name the name of the instance
+     * @return the locations of all physical ports of the instance
+     * @throws IOException if the stored physical ports are corrupt
+     */
+    public synchronized List<BlockLocation> getLocations(String name) throws IOException {
+        List<BlockLocation> locations = new ArrayList<>();
+        byte[] data = this.portData.get(name);
+        if (data == null) {
+            return locations;
+        }
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data));
+        int portCount = stream.readShort();
+        for (int i = 0; i < portCount; i++) {
+            stream.readUTF();
+            int loccount = stream.readShort();
+            for (int j = 0; j < loccount; j++) {
+                locations.add(new BlockLocation(stream.readUTF(), stream.readInt(), stream.readByte(), stream.readInt()));
+                stream.readBoolean();
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Loads the state and physical ports of a stored instance, the store must be opened
+     * 
+     * @param ci the instance to load
+     * @return if the stored state was loaded, false if the instance has no state that matches the circuit
+     * @throws IOException if the stored physical ports are corrupt
+     */
+    public synchronized boolean load(CircuitInstance ci) throws IOException {
+        Integer slot = this.slots.get(ci.name);
+        if (slot == null) {
+            return false;
+        }
+        boolean loaded = ci.getEvaluator() != null && slot < this.capacity && this.buffer.get(this.getPosition(slot)) != 0;
+        if (loaded) {
+            this.readRecord(slot, ci.getEvaluator());
+            ci.journalSequence = this.buffer.getLong(this.getPosition(slot) + 1);
+        }
+        byte[] data = this.portData.get(ci.name);
+        if (data != null) {
+            DataInputStream stream = new DataInputStream(new ByteArrayInputStream(data));
+            int portCount = stream.readShort();
+            for (int i = 0; i < portCount; i++) {
+                Port port = ci.getPort(stream.readUTF());
+                if (port == null) {
+                    Port.skipPhysical(stream);
+                } else {
+                    port.loadPhysical(stream);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reserves a record for an instance, if it has none yet
+     * <p>
+     * Only instances with a record are written, so an instance that is removed while a save is pending is not
+     * written again.
+     * 
+     * @param name the name of the instance
+     */
+    public synchronized void reserve(String name) {
+        this.readIndex();
+        if (!this.slots.containsKey(name)) {
+            int slot = this.used.nextClearBit(0);
+            this.used.set(slot);
+            this.slots.put(name, slot);
+        }
+    }
+
+    /**
+     * Removes an instance, freeing its record
+     * <p>
+     * The record is cleared if the state file is open. A record of a closed state file is not referred to by the index
+     * once it is written again, and is overwritten before the slot is used again.
+     * 
+     * @param name the name of the instance
+     */
+    public synchronized void remove(String name) {
+        Integer slot = this.slots.remove(name);
+        if (slot != null) {
+            this.used.clear(slot);
+            this.removed = true;
+            if (slot < this.capacity) {
+                this.clearRecords(slot, slot + 1);
+            }
+        }
+        this.portData.remove(name);
+    }
+
+    /**
+     * Gets whether instances were removed since the index was last written, so it must be written again
+     * 
+     * @return if instances were removed
+     */
+    public synchronized boolean hasRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Writes snapshots of instances to their records and writes the index, then flushes the state file to disk
+     * <p>
+     * Instances without a snapshot keep the state and physical ports that were stored before.
+     * 
+     * @param snapshots the snapshots of the instances to write
+     * @return if the instances were saved
+     */
+    synchronized boolean save(Collection<InstanceSnapshot> snapshots) {
+        try {
+            this.mapFile();
+            for (InstanceSnapshot snapshot : snapshots) {
+                Integer slot = this.slots.get(snapshot.name);
+                if (slot == null) {
+                    // removed since the snapshot was taken
+                    continue;
+                }
+                if (slot >= this.capacity) {
+                    this.map((int) Math.min(Integer.MAX_VALUE, Math.max(slot + 1L, 2L * this.capacity)));
+                }
+                this.writeRecord(slot, snapshot);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                snapshot.savePorts(new DataOutputStream(bytes));
+                this.portData.put(snapshot.name, bytes.toByteArray());
+            }
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.SEVERE, "Failed to write '" + this.stateFile + "': " + ex.getMessage());
+            return false;
+        }
+        this.buffer.force();
+        this.removed = false;
+        return new DataWriter(this.indexFile) {
+            @Override
+            public void write(DataOutputStream stream) throws IOException {
+                // the instances are written first, so the world names they use are known
+                Map<String, Integer> worlds = new LinkedHashMap<>();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream instances = new DataOutputStream(bytes);
+                CircuitFormat.writeVarInt(instances, InstanceStore.this.slots.size());
+                for (Map.Entry<String, Integer> entry : InstanceStore.this.slots.entrySet()) {
+                    instances.writeUTF(entry.getKey());
+                    CircuitFormat.writeVarInt(instances, entry.getValue());
+                    byte[] data = InstanceStore.this.portData.get(entry.getKey());
+                    if (data == null) {
+                        CircuitFormat.writeVarInt(instances, 0);
+                    } else {
+                        writeCompactPorts(instances, data, worlds);
+                    }
+                }
+                stream.writeInt(INDEX_MAGIC);
+                CircuitFormat.writeVarInt(stream, worlds.size());
+                for (String world : worlds.keySet()) {
+                    stream.writeUTF(world);
+                }
+                instances.flush();
+                bytes.writeTo(stream);
+            }
+        }.write();
+    }
+
+    /**
+     * Closes the state file, it is opened again when needed
+     */
+    public synchronized void close() {
+        if (this.file != null) {
+            try {
+                this.file.close();
+            } catch (IOException ex) {
+                RedstoneMania.plugin.log(Level.WARNING, "Failed to close '" + this.stateFile + "': " + ex.getMessage());
+            }
+        }
+        this.file = null;
+        this.buffer = null;
+        this.capacity = 0;
+    }
+
+    private void readRecord(int slot, NetlistEvaluator evaluator) {
+        // the valid byte and journal sequence number come first
+        int base = this.getPosition(slot) + RECORD_HEADER_SIZE;
+        int counterBase = base + this.bitBytes + this.delayedBytes;
+        int d = 0;
+        for (int i = 0; i < this.netlist.size(); i++) {
+            boolean powered = (this.buffer.get(base + (i >>> 3)) & (1 << (i & 7))) != 0;
+            int setdelay = 0;
+            boolean setMainPowered = false;
+            if (d < this.delayed.length && this.delayed[d] == i) {
+                setdelay = this.getCounter(this.buffer, counterBase + this.counterSize * d);
+                setMainPowered = (this.buffer.get(base + this.bitBytes + (d >>> 3)) & (1 << (d & 7))) != 0;
+                d++;
+            }
+            evaluator.setState(i, powered, setdelay, setMainPowered);
+        }
+    }
+
+    private void writeRecord(int slot, InstanceSnapshot snapshot) {
+        int base = this.getPosition(slot);
+        this.buffer.put(base, (byte) 1);
+        this.buffer.putLong(base + 1, snapshot.journalSequence);
+        for (int b = 0; b < this.bitBytes; b++) {
+            int powered = 0;
+            for (int i = b << 3; i < Math.min((b + 1) << 3, this.netlist.size()); i++) {
+                if (snapshot.getPoweredState(i)) {
+                    powered |= 1 << (i & 7);
+                }
+            }
+            this.buffer.put(base + RECORD_HEADER_SIZE + b, (byte) powered);
+        }
+        for (int d = 0; d < this.delayed.length; d++) {
+            int i = this.delayed[d];
+            this.putDelay(base, d, snapshot.getRemainingDelay(i), snapshot.getDelayedMainPowered(i));
+        }
+    }
+
+    /**
+     * Reads a delay counter of a record
+     * 
+     * @param buffer   the buffer to read from
+     * @param position the position of the counter
+     * @return the amount of ticks until the delayed power state is set, 0 for none
+     */
+    private int getCounter(ByteBuffer buffer, int position) {
+        if (this.counterSize == 1) {
+            return buffer.get(position) & 0xFF;
+        } else if (this.counterSize == 2) {
+            return buffer.getShort(position) & 0xFFFF;
+        } else {
+            return buffer.getInt(position);
+        }
+    }
+
+    /**
+     * Writes the delay counter and delayed main power state of a delayed element to a record
+     * 
+     * @param base           the position of the record
+     * @param d              the index of the element among the delayed elements
+     * @param setdelay       the amount of ticks until the delayed power state is set, 0 for none
+     * @param setMainPowered the delayed main power state
+     */
+    private void putDelay(int base, int d, int setdelay, boolean setMainPowered) {
+        // the valid byte and journal sequence number come first
+        base += RECORD_HEADER_SIZE;
+        int counter = base + this.bitBytes + this.delayedBytes + this.counterSize * d;
+        if (this.counterSize == 1) {
+            this.buffer.put(counter, (byte) setdelay);
+        } else if (this.counterSize == 2) {
+            this.buffer.putShort(counter, (short) setdelay);
+        } else {
+            this.buffer.putInt(counter, setdelay);
+        }
+        int bits = base + this.bitBytes + (d >>> 3);
+        if (setMainPowered) {
+            this.buffer.put(bits, (byte) (this.buffer.get(bits) | (1 << (d & 7))));
+        } else {
+            this.buffer.put(bits, (byte) (this.buffer.get(bits) & ~(1 << (d & 7))));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.bergerkiller.bukkit.rm.RedstoneMania;
+import com.bergerkiller.bukkit.rm.element.Component;
+
+/**
+ * A cache of compiled circuit netlists, so an unchanged circuit is not loaded, linked and compiled again
+ * <p>
+ * Every entry is keyed by a hash of the circuit file and the keys of the circuits it depends on, so an entry is no
+ * longer valid once the circuit or any of its dependencies changes. An entry holds the netlist and the unconnected
+ * prototype elements, which hold the initial state of new instances, and ends with a CRC32 checksum.
+ * 
+ * @author bbayu123
+ *
+ */
+public final class NetlistCache {
+    /**
+     * The magic number at the start of every cache entry, "RMN" followed by a zero byte
+     */
+    public static final int MAGIC = 0x524D4E00;
+    /**
+     * The cache format version, entries of another version are compiled again
+     */
+    public static final int VERSION = 2;
+
+    private NetlistCache() {
+    }
+
+    public static File getFolder() {
+        File folder = new File(RedstoneMania.plugin.getDataFolder(), "cache");
+        folder.mkdirs();
+        return folder;
+    }
+
+    private static File getFile(String circuitName) {
+        return new File(getFolder(), circuitName + ".netlist");
+    }
+
+    /**
+     * Computes the cache key of a circuit
+     * 
+     * @param source         the circuit file
+     * @param dependencyKeys the keys of the circuits it depends on, in the order they are stored in the file
+     * @return the key
+     * @throws IOException if there is a problem reading the circuit file
+     */
+    static byte[] computeKey(File source, byte[][] dependencyKeys) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("No SHA-256 support", ex);
+        }
+        digest.update(Files.readAllBytes(source.toPath()));
+        for (byte[] key : dependencyKeys) {
+            digest.update(key);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Loads the compiled netlist of a circuit, if the cache holds a valid entry for it
+     * 
+     * @param circuit the circuit to load, of which only the name has to be set
+     * @param key     the cache key of the circuit
+     * @return if the netlist was loaded
+     */
+    static boolean load(Circuit circuit, byte[] key) {
+        File file = getFile(circuit.name);
+        if (!file.exists()) {
+            return false;
+        }
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            DataInputStream stream = new DataInputStream(input);
+            if (stream.readInt() != MAGIC || CircuitFormat.readVarInt(stream) != VERSION) {
+                return false;
+            }
+            byte[] entryKey = new byte[CircuitFormat.readVarInt(stream)];
+            stream.readFully(entryKey);
+            if (!Arrays.equals(entryKey, key)) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            DataInputStream body = new DataInputStream(new CheckedInputStream(stream, crc));
+            CircuitNetlist netlist = CircuitNetlist.read(body);
+            int mainElementCount = CircuitFormat.readVarInt(body);
+            Component[] elements = new Component[netlist.size()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = Component.loadCompactComponent(body);
+                elements[i].loadInstance(body);
+                elements[i].setId(i);
+            }
+            if (stream.readInt() != (int) crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            circuit.setCompiled(netlist, elements, mainElementCount);
+            return true;
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.WARNING, "Compiled netlist of circuit '" + circuit.name + "' could not be read, it is compiled again: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Saves the compiled netlist of a circuit
+     * 
+     * @param circuit the compiled circuit
+     * @param key     the cache key of the circuit
+     */
+    static void save(Circuit circuit, byte[] key) {
+        File file = getFile(circuit.name);
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+            DataOutputStream stream = new DataOutputStream(output);
+            stream.writeInt(MAGIC);
+            CircuitFormat.writeVarInt(stream, VERSION);
+            CircuitFormat.writeVarInt(stream, key.length);
+            stream.write(key);
+            CRC32 crc = new CRC32();
+            DataOutputStream body = new DataOutputStream(new CheckedOutputStream(stream, crc));
+            circuit.getNetlist().write(body);
+            CircuitFormat.writeVarInt(body, circuit.getMainElementCount());
+            for (Component element : circuit.getPrototypeElements()) {
+                element.saveCompact(body);
+                element.saveInstance(body);
+            }
+            body.flush();
+            stream.writeInt((int) crc.getValue());
+        } catch (IOException ex) {
+            RedstoneMania.plugin.log(Level.WARNING, "Failed to cache the compiled netlist of circuit '" + circuit.name + "': " + ex.getMessage());
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,769 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.bergerkiller.bukkit.rm.element.Component;
+import com.bergerkiller.bukkit.rm.element.Port;
+
+/**
+ * Simulates the power state of a compiled circuit
+ * <p>
+ * All power states are stored in packed bit sets indexed by element ID. The ports of the circuit are notified when
+ * their power changes, so they can update the physical ports in the world.
+ * <p>
+ * Power changes propagate through a first-in first-out worklist of elements to update. An element whose power changes
+ * queues all its outputs, so a change reaches all elements at the same distance before it travels further. Every
+ * tick, the delays that expire are applied first, after which the worklist is processed until it is empty or the
+ * step budget is used up. Remaining updates continue in the next tick.
+ * <p>
+ * Only evaluators with pending work are ticked. An evaluator wakes up when it schedules a delay or has updates left
+ * over, and goes back to sleep once its timing wheel and worklist are empty.
+ * 
+ * @author bbayu123
+ *
+ */
+public class NetlistEvaluator {
+    /**
+     * The maximum allowed updates per tick of a single element
+     */
+    private static final int BURNOUT_VALUE = 5;
+    /**
+     * The initial capacity of the worklist, it grows up to the amount of elements when needed
+     */
+    private static final int QUEUE_CAPACITY = 16;
+    /**
+     * The maximum amount of element updates performed every tick
+     */
+    private static int stepBudget = 100000;
+    /**
+     * The evaluators that have pending work and are ticked every tick
+     */
+    private static final ArrayList<NetlistEvaluator> active = new ArrayList<>();
+
+    /**
+     * The netlist that is simulated
+     */
+    private final CircuitNetlist netlist;
+    /**
+     * The port components, indexed by port slot
+     */
+    private final Port[] ports;
+    /**
+     * Whether the element outputs power
+     */
+    private final long[] powered;
+    /**
+     * Whether there currently is power from the main inputs
+     */
+    private final long[] mainInputPower;
+    /**
+     * Whether there currently is power from the side inputs
+     */
+    private final long[] sideInputPower;
+    /**
+     * Whether a port receives power from a lever
+     */
+    private final long[] leverPowered;
+    /**
+     * Whether the element has power for output, as counted by the inputs of its outputs
+     */
+    private final long[] outputPower;
+    /**
+     * The amount of main inputs that have power for output
+     */
+    private final int[] mainInputCount;
+    /**
+     * The amount of side inputs that have power for output
+     */
+    private final int[] sideInputCount;
+    /**
+     * Whether a delayed power state is waiting to be set
+     */
+    private final long[] delayPending;
+    /**
+     * The main power state to set after the current delay
+     */
+    private final long[] setMainPowered;
+    /**
+     * The side power state to set after the current delay
+     */
+    private final long[] setSidePowered;
+    /**
+     * The tick at which the current delay of an element expires
+     */
+    private final int[] delayTick;
+    /**
+     * The tick at which the burnout counter was last reset
+     */
+    private final int[] burnoutTick;
+    /**
+     * The current counter for the burnout
+     */
+    private final byte[] burnoutCounter;
+    /**
+     * The timing wheel that schedules the delayed elements
+     */
+    private TimingWheel timingWheel = null;
+    /**
+     * The worklist of elements to update, as a ring buffer
+     */
+    private int[] queue;
+    /**
+     * Whether an element is in the worklist
+     */
+    private final long[] queued;
+    /**
+     * The position of the first element in the worklist
+     */
+    private int queueHead = 0;
+    /**
+     * The amount of elements in the worklist
+     */
+    private int queueSize = 0;
+    /**
+     * Whether the worklist is currently being processed
+     */
+    private boolean draining = false;
+    /**
+     * The tick at which the step counter was last reset
+     */
+    private int stepTick;
+    /**
+     * The amount of element updates performed in the current tick
+     */
+    private int steps = 0;
+    /**
+     * The position of this evaluator in the active list, or -1 if it is sleeping
+     */
+    private int activeIndex = -1;
+    /**
+     * Whether the stored state changed since it was last saved
+     */
+    private boolean changed = true;
+
+    /**
+     * Creates a new evaluator for a compiled netlist
+     * <p>
+     * The ports that are notified of power changes must be set using {@link #setPort(int, Port)}.
+     * 
+     * @param netlist  the netlist to simulate
+     * @param elements the components the netlist was compiled from, to read the initial state from
+     */
+    public NetlistEvaluator(CircuitNetlist netlist, Component[] elements) {
+        this.netlist = netlist;
+        int words = (netlist.size + 63) >>> 6;
+        this.powered = new long[words];
+        this.mainInputPower = new long[words];
+        this.sideInputPower = new long[words];
+        this.leverPowered = new long[words];
+        this.outputPower = new long[words];
+        this.mainInputCount = new int[netlist.size];
+        this.sideInputCount = new int[netlist.size];
+        this.delayPending = new long[words];
+        this.setMainPowered = new long[words];
+        this.setSidePowered = new long[words];
+        this.delayTick = new int[netlist.size];
+        this.burnoutTick = new int[netlist.size];
+        this.burnoutCounter = new byte[netlist.size];
+        this.queue = new int[Math.min(netlist.size, QUEUE_CAPACITY)];
+        this.queued = new long[words];
+        this.stepTick = TimingWheel.getCurrentTick();
+        Arrays.fill(this.burnoutTick, TimingWheel.getCurrentTick());
+        Arrays.fill(this.burnoutCounter, (byte) BURNOUT_VALUE);
+        this.ports = new Port[netlist.ports.length];
+        for (Component element : elements) {
+            element.applyState(this);
+        }
+    }
+
+    private static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Gets the maximum amount of element updates a single evaluator performs every tick
+     * 
+     * @return the step budget
+     */
+    public static int getStepBudget() {
+        return stepBudget;
+    }
+
+    /**
+     * Sets the maximum amount of element updates a single evaluator performs every tick
+     * 
+     * @param budget the step budget
+     */
+    public static void setStepBudget(int budget) {
+        stepBudget = Math.max(1, budget);
+    }
+
+    /**
+     * Ticks all evaluators that have pending work, putting the evaluators that run out of work to sleep
+     */
+    public static void tickActive() {
+        int i = 0;
+        while (i < active.size()) {
+            NetlistEvaluator evaluator = active.get(i);
+            evaluator.onTick();
+            if (i < active.size() && active.get(i) == evaluator) {
+                if (evaluator.isIdle()) {
+                    evaluator.sleep();
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts all evaluators to sleep
+     */
+    public static void clearActive() {
+        for (NetlistEvaluator evaluator : active) {
+            evaluator.activeIndex = -1;
+        }
+        active.clear();
+    }
+
+    /**
+     * Gets the amount of evaluators that have pending work
+     * 
+     * @return the amount of active evaluators
+     */
+    public static int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Gets the netlist that is simulated
+     * 
+     * @return the netlist
+     */
+    public CircuitNetlist getNetlist() {
+        return this.netlist;
+    }
+
+    /**
+     * Gets the port component that is notified when the power of a port element changes
+     * 
+     * @param index the index of the port element
+     * @return the port, or null if there is none
+     */
+    public Port getPort(int index) {
+        int slot = this.netlist.getPortSlot(index);
+        return slot < 0 ? null : this.ports[slot];
+    }
+
+    /**
+     * Sets the port component that is notified when the power of a port element changes
+     * 
+     * @param index the index of the port element
+     * @param port  the port
+     */
+    public void setPort(int index, Port port) {
+        int slot = this.netlist.getPortSlot(index);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Element " + index + " is not a port");
+        }
+        this.ports[slot] = port;
+    }
+
+    /**
+     * Ticks the elements that have a delay expiring
+     */
+    public void onTick() {
+        // continue the updates that did not fit in the previous tick
+        this.drain();
+        if (this.timingWheel != null) {
+            // apply all expiring delays before their changes propagate
+            this.draining = true;
+            try {
+                this.timingWheel.onTick();
+            } finally {
+                this.draining = false;
+            }
+        }
+        this.drain();
+    }
+
+    /**
+     * Updates all elements and notifies the physical ports
+     */
+    public void update() {
+        for (int i = 0; i < this.netlist.size; i++) {
+            this.enqueue(i);
+        }
+        this.drain();
+        for (Port port : this.ports) {
+            if (port != null) {
+                port.onPowerChange();
+            }
+        }
+    }
+
+    /**
+     * Gets whether there are element updates waiting in the worklist
+     * 
+     * @return if updates are queued
+     */
+    public boolean hasQueuedUpdates() {
+        return this.queueSize > 0;
+    }
+
+    /**
+     * Gets whether this evaluator has no delays pending and no updates queued
+     * 
+     * @return if this evaluator is idle
+     */
+    public boolean isIdle() {
+        return this.queueSize == 0 && (this.timingWheel == null || this.timingWheel.isEmpty());
+    }
+
+    /**
+     * Estimates the amount of memory used by the state of this evaluator, excluding the shared netlist
+     * 
+     * @return the estimated size in bytes
+     */
+    public long getMemorySize() {
+        long words = (this.netlist.size + 63) >>> 6;
+        long size = 9 * 8 * words;
+        size += 4 * 4 * (long) this.netlist.size + this.netlist.size;
+        size += 4 * (long) this.queue.length + 4 * (long) this.ports.length;
+        return size;
+    }
+
+    /**
+     * Gets whether this evaluator is ticked every tick
+     * 
+     * @return if this evaluator is active
+     */
+    public boolean isActive() {
+        return this.activeIndex != -1;
+    }
+
+    /**
+     * Makes this evaluator get ticked every tick, until it runs out of work
+     */
+    public void wake() {
+        if (this.activeIndex == -1) {
+            this.activeIndex = active.size();
+            active.add(this);
+        }
+    }
+
+    /**
+     * Stops this evaluator from being ticked, called when the instance it simulates is removed
+     */
+    public void sleep() {
+        int index = this.activeIndex;
+        if (index == -1) {
+            return;
+        }
+        NetlistEvaluator last = active.remove(active.size() - 1);
+        if (last != this) {
+            active.set(index, last);
+            last.activeIndex = index;
+        }
+        this.activeIndex = -1;
+    }
+
+    /**
+     * Gets if an element is powering outputs or not
+     * 
+     * @param index the index of the element
+     * @return if the element has power for output
+     */
+    public boolean hasPower(int index) {
+        return get(this.powered, index) || get(this.leverPowered, index);
+    }
+
+    /**
+     * Gets whether an element is powered by an input or not
+     * 
+     * @param index the index of the element
+     * @return if the element is powered
+     */
+    public boolean isPowered(int index) {
+        return get(this.mainInputPower, index) || get(this.sideInputPower, index);
+    }
+
+    /**
+     * Gets whether a port element receives power from a lever
+     * 
+     * @param index the index of the element
+     * @return if the element is lever powered
+     */
+    public boolean isLeverPowered(int index) {
+        return get(this.leverPowered, index);
+    }
+
+    /**
+     * Sets whether a port element receives power from a lever
+     * 
+     * @param index   the index of the element
+     * @param powered the lever power state
+     */
+    public void setLeverPowered(int index, boolean powered) {
+        this.changed = true;
+        set(this.leverPowered, index, powered);
+        this.updateOutputPower(index);
+    }
+
+    /**
+     * Gets the power state stored for an element, excluding lever power
+     * 
+     * @param index the index of the element
+     * @return the stored power state
+     */
+    public boolean getPoweredState(int index) {
+        return get(this.powered, index);
+    }
+
+    /**
+     * Gets the amount of ticks left until the current delay of an element expires
+     * 
+     * @param index the index of the element
+     * @return the remaining delay, or 0 if no delay is pending
+     */
+    public int getRemainingDelay(int index) {
+        if (!get(this.delayPending, index)) {
+            return 0;
+        }
+        return Math.max(1, this.delayTick[index] - TimingWheel.getCurrentTick());
+    }
+
+    /**
+     * Gets the main power state that is set once the current delay of an element expires
+     * 
+     * @param index the index of the element
+     * @return the delayed main power state
+     */
+    public boolean getDelayedMainPowered(int index) {
+        return get(this.setMainPowered, index);
+    }
+
+    /**
+     * Gets whether the stored state changed since it was last marked unchanged
+     * 
+     * @return if the state changed
+     */
+    public boolean isChanged() {
+        return this.changed;
+    }
+
+    /**
+     * Marks the stored state as unchanged, after it has been loaded or saved
+     */
+    public void setUnchanged() {
+        this.changed = false;
+    }
+
+    /**
+     * Copies the stored power and delay state of all elements into a snapshot
+     * 
+     * @param snapshot the snapshot to copy into
+     */
+    void capture(InstanceSnapshot snapshot) {
+        snapshot.powered = this.powered.clone();
+        snapshot.delayPending = this.delayPending.clone();
+        snapshot.setMainPowered = this.setMainPowered.clone();
+        snapshot.delayTick = this.delayTick.clone();
+    }
+
+    /**
+     * Sets the stored power and delay state of an element
+     * 
+     * @param index          the index of the element
+     * @param powered        the stored power state
+     * @param setdelay       the amount of ticks until the delayed power state is set, 0 for none
+     * @param setMainPowered the delayed main power state
+     */
+    public void setState(int index, boolean powered, int setdelay, boolean setMainPowered) {
+        this.changed = true;
+        set(this.powered, index, powered);
+        this.updateOutputPower(index);
+        set(this.setMainPowered, index, setMainPowered);
+        set(this.setSidePowered, index, false);
+        if (setdelay > 0) {
+            this.scheduleDelay(index, setdelay);
+        } else {
+            set(this.delayPending, index, false);
+        }
+    }
+
+    /**
+     * Sets the input power of all elements to the power of their current inputs, without updating the elements
+     * <p>
+     * Used after the stored state of all elements is set, so that elements with a pending delay keep waiting for it
+     * instead of seeing their inputs change.
+     */
+    void restoreInputs() {
+        for (int i = 0; i < this.netlist.size; i++) {
+            if (!get(this.netlist.skipped, i)) {
+                int cone = this.netlist.cones[i];
+                set(this.mainInputPower, i, cone == -1 ? this.mainInputCount[i] > 0 : this.lookupCone(cone));
+                set(this.sideInputPower, i, this.sideInputCount[i] > 0);
+            }
+        }
+    }
+
+    /**
+     * Adds an element to the end of the worklist, unless it is already queued
+     * 
+     * @param index the index of the element
+     */
+    private void enqueue(int index) {
+        if (get(this.queued, index)) {
+            return;
+        }
+        set(this.queued, index, true);
+        if (this.queueSize == this.queue.length) {
+            this.growQueue();
+        }
+        int position = this.queueHead + this.queueSize;
+        if (position >= this.queue.length) {
+            position -= this.queue.length;
+        }
+        this.queue[position] = index;
+        this.queueSize++;
+    }
+
+    /**
+     * Doubles the capacity of the worklist, moving the queued elements to the start
+     */
+    private void growQueue() {
+        int[] queue = new int[Math.min(this.netlist.size, this.queue.length << 1)];
+        int tail = this.queue.length - this.queueHead;
+        if (tail >= this.queueSize) {
+            System.arraycopy(this.queue, this.queueHead, queue, 0, this.queueSize);
+        } else {
+            System.arraycopy(this.queue, this.queueHead, queue, 0, tail);
+            System.arraycopy(this.queue, 0, queue, tail, this.queueSize - tail);
+        }
+        this.queue = queue;
+        this.queueHead = 0;
+    }
+
+    /**
+     * Updates the elements in the worklist until it is empty or the step budget of this tick is used up
+     */
+    private void drain() {
+        if (this.draining) {
+            return;
+        }
+        int tick = TimingWheel.getCurrentTick();
+        if (this.stepTick != tick) {
+            this.stepTick = tick;
+            this.steps = 0;
+        }
+        this.draining = true;
+        try {
+            while (this.queueSize > 0 && this.steps < stepBudget) {
+                int index = this.queue[this.queueHead];
+                if (++this.queueHead == this.queue.length) {
+                    this.queueHead = 0;
+                }
+                this.queueSize--;
+                set(this.queued, index, false);
+                this.steps++;
+                this.update(index);
+            }
+        } finally {
+            this.draining = false;
+        }
+        if (this.queueSize > 0) {
+            // out of budget, continue next tick
+            this.wake();
+        }
+    }
+
+    /**
+     * Updates the outputs of an element using its inputs
+     * 
+     * @param index the index of the element
+     * @return if the element has changed
+     */
+    private boolean update(int index) {
+        // we don't have to update inactive elements!
+        if (get(this.netlist.skipped, index)) {
+            return false;
+        }
+        // check if the opposite is the new result
+        int cone = this.netlist.cones[index];
+        boolean hasmaininput = cone == -1 ? this.mainInputCount[index] > 0 : this.lookupCone(cone);
+        boolean hassideinput = this.sideInputCount[index] > 0;
+        if ((get(this.mainInputPower, index) ^ hasmaininput) || (get(this.sideInputPower, index) ^ hassideinput)) {
+            set(this.mainInputPower, index, hasmaininput);
+            set(this.sideInputPower, index, hassideinput);
+            this.setPowered(index, hasmaininput, hassideinput, true);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the main input power of the root of a cone from its lookup table
+     * 
+     * @param cone the cone
+     * @return if the root has main input power
+     */
+    private boolean lookupCone(int cone) {
+        int key = 0;
+        int bit = 1;
+        for (int i = this.netlist.coneInputOffsets[cone]; i < this.netlist.coneInputOffsets[cone + 1]; i++) {
+            if (get(this.outputPower, this.netlist.coneInputs[i])) {
+                key |= bit;
+            }
+            bit <<= 1;
+        }
+        return (this.netlist.coneTables[cone][key >>> 6] & (1L << key)) != 0;
+    }
+
+    /**
+     * Updates the powered input counts of the outputs of an element when its power for output has changed
+     * 
+     * @param index the index of the element
+     */
+    private void updateOutputPower(int index) {
+        boolean hasPower = this.hasPower(index);
+        if (hasPower == get(this.outputPower, index)) {
+            return;
+        }
+        set(this.outputPower, index, hasPower);
+        int change = hasPower ? 1 : -1;
+        for (int i = this.netlist.mainOutputOffsets[index]; i < this.netlist.mainOutputOffsets[index + 1]; i++) {
+            this.mainInputCount[this.netlist.mainOutputTargets[i]] += change;
+        }
+        for (int i = this.netlist.sideOutputOffsets[index]; i < this.netlist.sideOutputOffsets[index + 1]; i++) {
+            this.sideInputCount[this.netlist.sideOutputTargets[i]] += change;
+        }
+    }
+
+    /**
+     * Called when the power state of an element has changed
+     * 
+     * @param index the index of the element
+     */
+    private void onPowerChange(int index) {
+        Port port = this.netlist.types[index] == CircuitNetlist.TYPE_PORT ? this.getPort(index) : null;
+        if (port != null) {
+            // the port updates the physical ports, then propagates
+            port.onPowerChange();
+        } else {
+            this.propagate(index);
+        }
+    }
+
+    /**
+     * Updates all outputs of an element
+     * <p>
+     * The outputs are added to the worklist, which is processed right away unless it is already being processed.
+     * 
+     * @param index the index of the element
+     */
+    public void propagate(int index) {
+        for (int i = this.netlist.mainOutputOffsets[index]; i < this.netlist.mainOutputOffsets[index + 1]; i++) {
+            this.enqueue(this.netlist.mainOutputTargets[i]);
+        }
+        for (int i = this.netlist.sideOutputOffsets[index]; i < this.netlist.sideOutputOffsets[index + 1]; i++) {
+            this.enqueue(this.netlist.sideOutputTargets[i]);
+        }
+        this.drain();
+    }
+
+    /**
+     * Called by the timing wheel when the current delay of an element expires
+     * 
+     * @param index the index of the element
+     * @param tick  the tick that is expiring
+     */
+    void onDelayExpired(int index, int tick) {
+        if (get(this.delayPending, index) && this.delayTick[index] == tick) {
+            this.changed = true;
+            set(this.delayPending, index, false);
+            boolean mainPowered = get(this.setMainPowered, index);
+            boolean sidePowered = get(this.setSidePowered, index);
+            this.setPowered(index, mainPowered, sidePowered, false);
+
+            // inputs that changed while the delay was pending are applied right away
+            boolean mainInput = get(this.mainInputPower, index);
+            boolean sideInput = get(this.sideInputPower, index);
+            if ((mainInput ^ mainPowered) || (sideInput ^ sidePowered)) {
+                this.setPowered(index, mainInput, sideInput, false);
+            }
+        }
+    }
+
+    /**
+     * Schedules the delayed power state of an element to be set after a number of ticks
+     * 
+     * @param index the index of the element
+     * @param ticks the amount of ticks to wait
+     */
+    private void scheduleDelay(int index, int ticks) {
+        if (this.timingWheel == null) {
+            this.timingWheel = new TimingWheel(this);
+        }
+        this.changed = true;
+        set(this.delayPending, index, true);
+        this.delayTick[index] = TimingWheel.getCurrentTick() + ticks;
+        this.timingWheel.schedule(index, this.delayTick[index]);
+        this.wake();
+    }
+
+    /**
+     * Sets the power state of an element
+     * 
+     * @param index       the index of the element
+     * @param mainPowered the main power state of the element
+     * @param sidePowered the side power state of the element
+     * @param usedelay    whether to use delay or not
+     */
+    private void setPowered(int index, boolean mainPowered, boolean sidePowered, boolean usedelay) {
+        int delay = this.netlist.delays[index];
+        if (usedelay && delay > 0) {
+            if (!get(this.delayPending, index)) {
+                set(this.setMainPowered, index, mainPowered);
+                set(this.setSidePowered, index, sidePowered);
+                this.scheduleDelay(index, delay);
+            }
+            return;
+        }
+
+        int tick = TimingWheel.getCurrentTick();
+        if (this.burnoutTick[index] != tick) {
+            this.burnoutTick[index] = tick;
+            this.burnoutCounter[index] = BURNOUT_VALUE;
+        }
+        if (this.burnoutCounter[index] > 0) {
+            --this.burnoutCounter[index];
+
+            boolean shouldPower = this.determinePower(index, mainPowered, sidePowered);
+            if (shouldPower ^ get(this.powered, index)) {
+                this.changed = true;
+                set(this.powered, index, shouldPower);
+                this.updateOutputPower(index);
+                this.onPowerChange(index);
+            }
+        }
+    }
+
+    private boolean determinePower(int index, boolean mainPowered, boolean sidePowered) {
+        if (sidePowered && get(this.netlist.locking, index)) {
+            // locked repeater
+            return get(this.powered, index);
+        }
+        return mainPowered ^ get(this.netlist.inverting, index);
+    }
+}
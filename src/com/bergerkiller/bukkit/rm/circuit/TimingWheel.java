@@ -0,0 +1,167 @@
+package com.bergerkiller.bukkit.rm.circuit;
+
+/**
+ * A timing wheel that schedules the delayed power transitions of the elements of a circuit
+ * <p>
+ * Elements are put in the slot of the tick at which their delay expires, so every tick only the elements of a single
+ * slot are visited. Delays longer than the wheel size stay in their slot until the right tick comes around.
+ * 
+ * @author bbayu123
+ *
+ */
+public class TimingWheel {
+    /**
+     * The amount of slots in the wheel, must be a power of two
+     */
+    private static final int SLOT_COUNT = 64;
+    /**
+     * The mask used to convert a tick into a slot index
+     */
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    /**
+     * The initial capacity of a single slot
+     */
+    private static final int SLOT_CAPACITY = 4;
+    /**
+     * The current server tick, shared by all wheels
+     */
+    private static int currentTick = 0;
+
+    /**
+     * The evaluator that owns the scheduled elements
+     */
+    private final NetlistEvaluator evaluator;
+    /**
+     * The element indices scheduled in each slot
+     */
+    private final int[][] slots = new int[SLOT_COUNT][];
+    /**
+     * The tick at which each scheduled element expires
+     */
+    private final int[][] slotTicks = new int[SLOT_COUNT][];
+    /**
+     * The amount of elements scheduled in each slot
+     */
+    private final int[] slotSizes = new int[SLOT_COUNT];
+    /**
+     * The total amount of elements scheduled in this wheel
+     */
+    private int size = 0;
+    /**
+     * The last tick processed by this wheel
+     */
+    private int lastTick = currentTick;
+    /**
+     * Whether this wheel is currently expiring the delays of a tick
+     */
+    private boolean expiring = false;
+
+    TimingWheel(NetlistEvaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * Gets the current server tick
+     * 
+     * @return the current tick
+     */
+    public static int getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Advances the current server tick by one, called once every tick before the wheels are processed
+     */
+    public static void nextTick() {
+        currentTick++;
+    }
+
+    /**
+     * Gets whether there are no elements scheduled in this wheel
+     * 
+     * @return if this wheel is empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Schedules an element to have its delay expire at a certain tick
+     * 
+     * @param index the index of the element to schedule
+     * @param tick  the tick at which the delay expires
+     */
+    public void schedule(int index, int tick) {
+        if (this.size == 0 && !this.expiring) {
+            // nothing pending, no need to walk over the ticks we missed
+            this.lastTick = currentTick;
+        }
+        int slot = tick & SLOT_MASK;
+        int[] entries = this.slots[slot];
+        int count = this.slotSizes[slot];
+        if (entries == null) {
+            entries = this.slots[slot] = new int[SLOT_CAPACITY];
+            this.slotTicks[slot] = new int[SLOT_CAPACITY];
+        } else if (count == entries.length) {
+            int[] newEntries = new int[count << 1];
+            int[] newTicks = new int[count << 1];
+            System.arraycopy(entries, 0, newEntries, 0, count);
+            System.arraycopy(this.slotTicks[slot], 0, newTicks, 0, count);
+            entries = this.slots[slot] = newEntries;
+            this.slotTicks[slot] = newTicks;
+        }
+        entries[count] = index;
+        this.slotTicks[slot][count] = tick;
+        this.slotSizes[slot] = count + 1;
+        this.size++;
+    }
+
+    /**
+     * Processes all ticks up to the current tick, expiring the delays of the elements scheduled in them
+     */
+    public void onTick() {
+        this.expiring = true;
+        try {
+            while (this.size > 0 && this.lastTick != currentTick) {
+                this.lastTick++;
+                this.expire(this.lastTick);
+            }
+        } finally {
+            this.expiring = false;
+        }
+        this.lastTick = currentTick;
+    }
+
+    /**
+     * Expires the delays of all elements scheduled at a tick
+     * 
+     * @param tick the tick to expire
+     */
+    private void expire(int tick) {
+        int slot = tick & SLOT_MASK;
+        int count = this.slotSizes[slot];
+        if (count == 0) {
+            return;
+        }
+        // Detach the slot, elements scheduled while expiring end up in a new one
+        int[] entries = this.slots[slot];
+        int[] ticks = this.slotTicks[slot];
+        this.slots[slot] = null;
+        this.slotTicks[slot] = null;
+        this.slotSizes[slot] = 0;
+        this.size -= count;
+        for (int i = 0; i < count; i++) {
+            if (ticks[i] == tick) {
+                this.evaluator.onDelayExpired(entries[i], tick);
+            } else {
+                // a later round of the wheel
+                this.schedule(entries[i], ticks[i]);
+            }
+        }
+        if (this.slots[slot] == null) {
+            // re-use the arrays
+            this.slots[slot] = entries;
+            this.slotTicks[slot] = ticks;
+        }
+    }
+}
@@ -3,7 +3,7 @@ package com.bergerkiller.bukkit.rm.element;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.logging.Level;
 
@@ -11,6 +11,9 @@ import org.bukkit.block.Block;
 
 import com.bergerkiller.bukkit.rm.RedstoneMania;
 import com.bergerkiller.bukkit.rm.circuit.CircuitBase;
+import com.bergerkiller.bukkit.rm.circuit.CircuitFormat;
+import com.bergerkiller.bukkit.rm.circuit.CircuitInstance;
+import com.bergerkiller.bukkit.rm.circuit.NetlistEvaluator;
 
 /**
  * A redstone component
@@ -20,6 +23,18 @@ import com.bergerkiller.bukkit.rm.circuit.CircuitBase;
  *
  */
 public abstract class Component {
+    /**
+     * The bits of the compact flags byte that store the type
+     */
+    private static final int TYPE_MASK = 0x07;
+    /**
+     * The bit of the compact flags byte that is set when the component is powered
+     */
+    private static final int FLAG_POWERED = 0x08;
+    /**
+     * The bit of the compact flags byte that is set when the component has a delay
+     */
+    private static final int FLAG_DELAYED = 0x10;
     /**
      * The current power state
      */
@@ -39,24 +54,22 @@ public abstract class Component {
 
     /**
      * A set of components that provide main input to this component
+     * <p>
+     * Connection sets keep their insertion order, so a circuit is linked and compiled the same way every time it is loaded
      */
-    public Set<Component> mainInputs = new HashSet<>();
+    public Set<Component> mainInputs = new LinkedHashSet<>();
     /**
      * A set of components that provide side input to this component
      */
-    public Set<Component> sideInputs = new HashSet<>();
+    public Set<Component> sideInputs = new LinkedHashSet<>();
     /**
      * A set of components that this component outputs to the main input
      */
-    public Set<Component> mainOutputs = new HashSet<>();
+    public Set<Component> mainOutputs = new LinkedHashSet<>();
     /**
      * A set of components that this component outputs to the side input
      */
-    public Set<Component> sideOutputs = new HashSet<>();
-    /**
-     * The maximum allowed updates per tick
-     */
-    private final int burnoutValue = 5;
+    public Set<Component> sideOutputs = new LinkedHashSet<>();
     /**
      * The relative location offset of this component
      */
@@ -70,10 +83,6 @@ public abstract class Component {
      * The main power state to set after the current delay
      */
     private boolean setMainPowered = false;
-    /**
-     * The side power state to set after the current delay
-     */
-    private boolean setSidePowered = false;
     /**
      * Whether there currently is power from the main inputs
      */
@@ -82,70 +91,57 @@ public abstract class Component {
      * Whether there currently is power from the side inputs
      */
     private boolean sideInputPower = false;
+
     /**
-     * The current counter for the burnout
+     * Called when the power state has changed
      */
-    private int burnoutCounter = this.burnoutValue;
+    public void onPowerChange() {
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            evaluator.propagate(this.id);
+        }
+    }
 
     /**
-     * Called every tick to update the state of this component
+     * Marks the instance this component belongs to as changed, so it is saved by the next autosave
      */
-    public void onTick() {
-        if (this.setdelay > 0) {
-            if (--this.setdelay == 0) {
-                this.setPowered(this.setMainPowered, this.setSidePowered, false);
-            }
+    public final void setDirty() {
+        if (this.circuit instanceof CircuitInstance) {
+            ((CircuitInstance) this.circuit).setDirty();
         }
-        this.burnoutCounter = this.burnoutValue;
     }
 
     /**
-     * Updates the outputs using the inputs, returns if this element changed
+     * Gets the evaluator that simulates this component
      * 
-     * @return if this element has changed
+     * @return the evaluator, or null if this component is not simulated
      */
-    public final boolean update() {
-        // we don't have to update inactive elements!
-        if (this.isDisabled()) {
-            if (this.getType() != 3) {
-                return false;
-            }
-        }
-        // check if the opposite is the new result
-        boolean hasmaininput = false;
-        for (Component input : this.mainInputs) {
-            if (input.hasPower()) {
-                hasmaininput = true;
-                break;
-            }
-        }
-        boolean hassideinput = false;
-        for (Component input : this.sideInputs) {
-            if (input.hasPower()) {
-                hassideinput = true;
-                break;
-            }
-        }
-        if ((this.mainInputPower ^ hasmaininput) || (this.sideInputPower ^ hassideinput)) {
-            this.mainInputPower = hasmaininput;
-            this.sideInputPower = hassideinput;
-            this.setPowered(hasmaininput, hassideinput, true);
-            return true;
+    protected final NetlistEvaluator getEvaluator() {
+        if (this.circuit instanceof CircuitInstance) {
+            return ((CircuitInstance) this.circuit).getEvaluator();
         } else {
-            return false;
+            return null;
         }
     }
 
     /**
-     * Called when the power state has changed
+     * Copies the stored power and delay state of this component to the evaluator simulating it
+     * 
+     * @param evaluator the evaluator to copy to
      */
-    public void onPowerChange() {
-        for (Component output : this.mainOutputs) {
-            output.update();
-        }
-        for (Component output : this.sideOutputs) {
-            output.update();
-        }
+    public void applyState(NetlistEvaluator evaluator) {
+        evaluator.setState(this.id, this.powered, this.setdelay, this.setMainPowered);
+    }
+
+    /**
+     * Copies the power and delay state of this component from the evaluator simulating it
+     * 
+     * @param evaluator the evaluator to copy from
+     */
+    public void captureState(NetlistEvaluator evaluator) {
+        this.powered = evaluator.getPoweredState(this.id);
+        this.setdelay = evaluator.getRemainingDelay(this.id);
+        this.setMainPowered = evaluator.getDelayedMainPowered(this.id);
     }
 
     /**
@@ -341,6 +337,10 @@ public abstract class Component {
      * @return if the component is powered
      */
     public final boolean isPowered() {
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            return evaluator.isPowered(this.id);
+        }
         return this.mainInputPower || this.sideInputPower;
     }
 
@@ -355,48 +355,16 @@ public abstract class Component {
         this.sideInputPower = sidePowered;
     }
 
-    /**
-     * Sets the power state of this component
-     * 
-     * @param mainPowered the main power state of this component
-     * @param sidePowered the side power state of this component
-     * @param usedelay    whether to use delay or not
-     */
-    private void setPowered(boolean mainPowered, boolean sidePowered, boolean usedelay) {
-        int delay = this.getDelay();
-        if (usedelay && delay > 0) {
-            if (this.setdelay == 0) {
-                this.setMainPowered = mainPowered;
-                this.setSidePowered = sidePowered;
-                this.setdelay = delay;
-            }
-            return;
-        }
-
-        if (this.burnoutCounter > 0) {
-            --this.burnoutCounter;
-
-            // If no main input power
-            boolean shouldPower = this.determinePower(mainPowered, sidePowered);
-            if (shouldPower ^ this.powered) {
-                this.powered = shouldPower;
-                this.onPowerChange();
-            }
-
-            if ((this.mainInputPower ^ mainPowered) || (this.sideInputPower ^ sidePowered)) {
-                this.setPowered(this.mainInputPower, this.sideInputPower, usedelay);
-            }
-        }
-    }
-
-    protected abstract boolean determinePower(boolean mainPowered, boolean sidePowered);
-
     /**
      * Gets if the component is powering outputs or not
      * 
      * @return if the component has power for output
      */
     public boolean hasPower() {
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            return evaluator.hasPower(this.id);
+        }
         return this.powered;
     }
 
@@ -539,6 +507,10 @@ public abstract class Component {
                 this.setMainPowered = stream.readBoolean();
             }
         }
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            this.applyState(evaluator);
+        }
     }
 
     /**
@@ -548,6 +520,10 @@ public abstract class Component {
      * @throws IOException if there is a problem writing to the data stream
      */
     public void saveInstance(DataOutputStream stream) throws IOException {
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            this.captureState(evaluator);
+        }
         stream.writeBoolean(this.powered);
         if (this.delay > 0) {
             stream.writeInt(this.setdelay);
@@ -588,6 +564,60 @@ public abstract class Component {
         this.delay = stream.readInt();
     }
 
+    /**
+     * Save this component's details to a data stream in the compact circuit format
+     * <p>
+     * The type, power state and whether there is a delay share a single byte.
+     * 
+     * @param stream the data stream to write to
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    public void saveCompact(DataOutputStream stream) throws IOException {
+        int flags = this.getType();
+        if (this.powered) {
+            flags |= FLAG_POWERED;
+        }
+        if (this.delay > 0) {
+            flags |= FLAG_DELAYED;
+        }
+        stream.writeByte(flags);
+        CircuitFormat.writeVarInt(stream, (this.x << 1) ^ (this.x >> 31));
+        CircuitFormat.writeVarInt(stream, (this.z << 1) ^ (this.z >> 31));
+        if (this.delay > 0) {
+            CircuitFormat.writeVarInt(stream, this.delay);
+        }
+    }
+
+    /**
+     * Loads this component's details from a data stream in the compact circuit format
+     * 
+     * @param stream the data stream to read from
+     * @param flags  the flags byte that was read with the type
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    public void loadCompact(DataInputStream stream, int flags) throws IOException {
+        int x = CircuitFormat.readVarInt(stream);
+        int z = CircuitFormat.readVarInt(stream);
+        this.x = (short) ((x >>> 1) ^ -(x & 1));
+        this.z = (short) ((z >>> 1) ^ -(z & 1));
+        this.powered = (flags & FLAG_POWERED) != 0;
+        this.delay = (flags & FLAG_DELAYED) != 0 ? CircuitFormat.readVarInt(stream) : 0;
+    }
+
+    /**
+     * Load a component from a data stream in the compact circuit format
+     * 
+     * @param stream the data stream to read from
+     * @return the component that was loaded
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    public static Component loadCompactComponent(DataInputStream stream) throws IOException {
+        int flags = stream.readUnsignedByte();
+        Component rval = createComponent((byte) (flags & TYPE_MASK));
+        rval.loadCompact(stream, flags);
+        return rval;
+    }
+
     /**
      * Load a component from a data stream
      * 
@@ -596,7 +626,13 @@ public abstract class Component {
      * @throws IOException if there is a problem reading from the data stream
      */
     public static Component loadComponent(DataInputStream stream) throws IOException {
-        byte type = stream.readByte();
+        Component rval = createComponent(stream.readByte());
+        // init
+        rval.loadFrom(stream);
+        return rval;
+    }
+
+    private static Component createComponent(byte type) {
         Component rval;
         if (type == 0) {
             rval = new Wire();
@@ -610,8 +646,6 @@ public abstract class Component {
             rval = new Wire();
             RedstoneMania.plugin.log(Level.SEVERE, "Unknown redstone type: " + type);
         }
-        // init
-        rval.loadFrom(stream);
         return rval;
     }
 
@@ -629,6 +663,7 @@ public abstract class Component {
             r = new Wire();
         }
         r.setData(this);
+        r.setPosition(this.x, this.z);
         return r;
     }
 
@@ -14,9 +14,4 @@ public class Inverter extends Component {
     public byte getType() {
         return 1;
     }
-
-    @Override
-    protected boolean determinePower(boolean mainPowered, boolean sidePowered) {
-        return !mainPowered;
-    }
 }
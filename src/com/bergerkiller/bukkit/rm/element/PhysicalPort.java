@@ -1,9 +1,18 @@
 package com.bergerkiller.bukkit.rm.element;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
+import org.bukkit.Chunk;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 
@@ -16,12 +25,51 @@ import com.bergerkiller.bukkit.common.utils.MaterialUtil;
 import com.bergerkiller.bukkit.rm.RedstoneMania;
 import com.bergerkiller.bukkit.rm.Util;
 import com.bergerkiller.bukkit.rm.circuit.CircuitInstance;
+import com.bergerkiller.bukkit.rm.circuit.InstanceJournal;
 
 /**
  * Represents a physical (block) port to a virtual port in a circuit
  */
 public class PhysicalPort {
     private static BlockMap<PhysicalPort> ports = new BlockMap<>();
+    /**
+     * The physical ports by world name and by chunk, so chunk and world events only visit the ports they affect
+     */
+    private static Map<String, Map<Long, Set<PhysicalPort>>> chunks = new HashMap<>();
+
+    private static long getChunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static void addToChunk(PhysicalPort port) {
+        Map<Long, Set<PhysicalPort>> worldChunks = chunks.get(port.position.world);
+        if (worldChunks == null) {
+            worldChunks = new HashMap<>();
+            chunks.put(port.position.world, worldChunks);
+        }
+        Long key = getChunkKey(port.position.x >> 4, port.position.z >> 4);
+        Set<PhysicalPort> chunkPorts = worldChunks.get(key);
+        if (chunkPorts == null) {
+            chunkPorts = new HashSet<>();
+            worldChunks.put(key, chunkPorts);
+        }
+        chunkPorts.add(port);
+    }
+
+    private static void removeFromChunk(PhysicalPort port) {
+        Map<Long, Set<PhysicalPort>> worldChunks = chunks.get(port.position.world);
+        if (worldChunks == null) {
+            return;
+        }
+        Long key = getChunkKey(port.position.x >> 4, port.position.z >> 4);
+        Set<PhysicalPort> chunkPorts = worldChunks.get(key);
+        if (chunkPorts != null && chunkPorts.remove(port) && chunkPorts.isEmpty()) {
+            worldChunks.remove(key);
+            if (worldChunks.isEmpty()) {
+                chunks.remove(port.position.world);
+            }
+        }
+    }
 
     private static BlockLocation getPostion(Block at) {
         Material type = at.getType();
@@ -38,7 +86,10 @@ public class PhysicalPort {
     private static PhysicalPort remove(BlockLocation at) {
         PhysicalPort p = ports.remove(at);
         if (p == null) return null;
+        removeFromChunk(p);
         if (p.port.locations.remove(p)) {
+            p.port.setDirty();
+            InstanceJournal.logPhysical(p, false);
             if (p.port.locations.size() == 0) {
                 ((CircuitInstance) p.port.getCircuit()).updateAlive();
             }
@@ -56,16 +107,62 @@ public class PhysicalPort {
         return remove(port.position) != null;
     }
 
+    /**
+     * Removes a physical port of an instance that is unloaded, without changing the instance
+     * 
+     * @param port to unload
+     */
+    public static void unload(PhysicalPort port) {
+        if (ports.get(port.position) == port) {
+            ports.remove(port.position);
+            removeFromChunk(port);
+        }
+        port.mainblock = null;
+    }
+
     public static Collection<PhysicalPort> getAll() {
         return ports.values();
     }
 
+    /**
+     * Gets the physical ports in a chunk
+     * 
+     * @param chunk to get the ports of
+     * @return the physical ports in the chunk
+     */
+    public static Collection<PhysicalPort> getAll(Chunk chunk) {
+        Map<Long, Set<PhysicalPort>> worldChunks = chunks.get(chunk.getWorld().getName());
+        if (worldChunks == null) {
+            return Collections.emptySet();
+        }
+        Set<PhysicalPort> chunkPorts = worldChunks.get(getChunkKey(chunk.getX(), chunk.getZ()));
+        return chunkPorts == null ? Collections.<PhysicalPort>emptySet() : Collections.unmodifiableSet(chunkPorts);
+    }
+
+    /**
+     * Gets the physical ports in a world
+     * 
+     * @param world to get the ports of
+     * @return the physical ports in the world
+     */
+    public static List<PhysicalPort> getAll(World world) {
+        Map<Long, Set<PhysicalPort>> worldChunks = chunks.get(world.getName());
+        List<PhysicalPort> worldPorts = new ArrayList<>();
+        if (worldChunks != null) {
+            for (Set<PhysicalPort> chunkPorts : worldChunks.values()) {
+                worldPorts.addAll(chunkPorts);
+            }
+        }
+        return worldPorts;
+    }
+
     public static PhysicalPort add(Port port, BlockLocation at) {
         return new PhysicalPort(port, at);
     }
 
     public static void clearAll() {
         ports.clear();
+        chunks.clear();
     }
 
     public static void updateLevers(Block at) {
@@ -89,8 +186,14 @@ public class PhysicalPort {
     public PhysicalPort(Port port, BlockLocation at) {
         this.port = port;
         this.position = at;
-        ports.put(this.position, this);
+        PhysicalPort replaced = ports.put(this.position, this);
+        if (replaced != null) {
+            removeFromChunk(replaced);
+        }
+        addToChunk(this);
         this.port.locations.add(this);
+        this.port.setDirty();
+        InstanceJournal.logPhysical(this, true);
         this.updateLoaded();
         this.updateLevers(false);
     }
@@ -102,6 +205,15 @@ public class PhysicalPort {
         this.setLoaded(this.position.isLoaded());
     }
 
+    /**
+     * Gets whether this Physical port is in a loaded area of the world
+     * 
+     * @return True if loaded, False if not
+     */
+    public boolean isLoaded() {
+        return this.mainblock != null;
+    }
+
     /**
      * Sets whether this Physical port is in a loaded area of the world
      * 
@@ -138,6 +250,7 @@ public class PhysicalPort {
                             // this physical port is powered
                             if (!this.leverpowered) {
                                 this.leverpowered = true;
+                                this.port.setDirty();
                                 if (setport) this.port.updateLeverPower();
                             }
                             return;
@@ -149,6 +262,7 @@ public class PhysicalPort {
         // this physical port is not powered
         if (this.leverpowered) {
             this.leverpowered = false;
+            this.port.setDirty();
             if (setport) {
                 // we went from on to off - did any other ports get power in the meantime?
                 for (PhysicalPort p : this.port.locations) {
@@ -181,7 +295,10 @@ public class PhysicalPort {
      * @param powered state to set to
      */
     public void setLeverPowered(boolean powered) {
-        this.leverpowered = powered;
+        if (this.leverpowered != powered) {
+            this.leverpowered = powered;
+            this.port.setDirty();
+        }
     }
 
     /**
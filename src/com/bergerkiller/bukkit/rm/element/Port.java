@@ -8,6 +8,9 @@ import java.util.HashSet;
 import org.bukkit.block.Block;
 
 import com.bergerkiller.bukkit.common.BlockLocation;
+import com.bergerkiller.bukkit.rm.circuit.CircuitInstance;
+import com.bergerkiller.bukkit.rm.circuit.InstanceJournal;
+import com.bergerkiller.bukkit.rm.circuit.NetlistEvaluator;
 
 public class Port extends Component {
 
@@ -27,14 +30,9 @@ public class Port extends Component {
         return 3;
     }
 
-    @Override
-    protected boolean determinePower(boolean mainPowered, boolean sidePowered) {
-        return mainPowered;
-    }
-
     @Override
     public boolean hasPower() {
-        return this.leverpowered || super.hasPower();
+        return this.isLeverPowered() || super.hasPower();
     }
 
     @Override
@@ -71,9 +69,9 @@ public class Port extends Component {
 
     public boolean updateLeverPower(PhysicalPort ignore) {
         if (this.isPowered()) {
-            this.leverpowered = false;
+            this.setLeverPowered(false);
         } else {
-            if (this.leverpowered) {
+            if (this.isLeverPowered()) {
                 for (PhysicalPort p : this.locations) {
                     if (p.isLeverPowered()) return false;
                 }
@@ -94,11 +92,26 @@ public class Port extends Component {
     }
 
     public boolean isLeverPowered() {
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            return evaluator.isLeverPowered(this.getId());
+        }
         return this.leverpowered;
     }
 
     public void setLeverPowered(boolean powered) {
-        this.leverpowered = powered;
+        NetlistEvaluator evaluator = this.getEvaluator();
+        if (evaluator != null) {
+            if (evaluator.isLeverPowered(this.getId()) != powered) {
+                InstanceJournal.logLever(this, powered);
+                if (this.getCircuit() instanceof CircuitInstance) {
+                    ((CircuitInstance) this.getCircuit()).touch();
+                }
+            }
+            evaluator.setLeverPowered(this.getId(), powered);
+        } else {
+            this.leverpowered = powered;
+        }
     }
 
     public PhysicalPort addPhysical(Block at) {
@@ -112,6 +125,22 @@ public class Port extends Component {
     @Override
     public void loadInstance(DataInputStream stream) throws IOException {
         super.loadInstance(stream);
+        this.loadPhysical(stream);
+    }
+
+    @Override
+    public void saveInstance(DataOutputStream stream) throws IOException {
+        super.saveInstance(stream);
+        this.savePhysical(stream);
+    }
+
+    /**
+     * Loads the physical ports of this port from a data stream
+     * 
+     * @param stream the data stream to read from
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    public void loadPhysical(DataInputStream stream) throws IOException {
         int loccount = stream.readShort();
         for (int pi = 0; pi < loccount; pi++) {
             BlockLocation at = new BlockLocation(stream.readUTF(), stream.readInt(), stream.readByte(), stream.readInt());
@@ -119,9 +148,30 @@ public class Port extends Component {
         }
     }
 
-    @Override
-    public void saveInstance(DataOutputStream stream) throws IOException {
-        super.saveInstance(stream);
+    /**
+     * Skips the physical ports of a port in a data stream
+     * 
+     * @param stream the data stream to read from
+     * @throws IOException if there is a problem reading from the data stream
+     */
+    public static void skipPhysical(DataInputStream stream) throws IOException {
+        int loccount = stream.readShort();
+        for (int pi = 0; pi < loccount; pi++) {
+            stream.readUTF();
+            stream.readInt();
+            stream.readByte();
+            stream.readInt();
+            stream.readBoolean();
+        }
+    }
+
+    /**
+     * Saves the physical ports of this port to a data stream
+     * 
+     * @param stream the data stream to write to
+     * @throws IOException if there is a problem writing to the data stream
+     */
+    public void savePhysical(DataOutputStream stream) throws IOException {
         stream.writeShort(this.locations.size());
         for (PhysicalPort pp : this.locations) {
             stream.writeUTF(pp.position.world);
@@ -142,5 +192,19 @@ public class Port extends Component {
     public void loadFrom(DataInputStream stream) throws IOException {
         super.loadFrom(stream);
         this.name = stream.readUTF();
+        // saveTo writes the name twice
+        stream.readUTF();
+    }
+
+    @Override
+    public void saveCompact(DataOutputStream stream) throws IOException {
+        super.saveCompact(stream);
+        stream.writeUTF(this.name);
+    }
+
+    @Override
+    public void loadCompact(DataInputStream stream, int flags) throws IOException {
+        super.loadCompact(stream, flags);
+        this.name = stream.readUTF();
     }
 }